@@ -90,7 +90,44 @@ window.App = {
 
         this.initSocket();
         setInterval(this.updateTime.bind(this), 1000);
-        jQuery.get("/boarddata", this.drawBoard.bind(this));
+        this.loadBoard();
+    },
+    loadBoard: function () {
+        jQuery.get("/boarddata", function (data, status, xhr) {
+            this.drawBoard(data);
+            // Fetch whatever was placed between the snapshot being taken and the socket connecting
+            this.seq = +xhr.getResponseHeader("X-Pxls-Seq");
+            this.resync();
+        }.bind(this));
+    },
+    resync: function () {
+        if (this.seq !== undefined && this.socket && this.socket.readyState === WebSocket.OPEN) {
+            this.socket.send(JSON.stringify({type: "resync", since: this.seq}));
+            this.subscribe(true);
+        }
+    },
+    subscribe: function (force) {
+        // Ask for pixel updates only around the visible part of the board. The subscribed area is padded by half a
+        // screen on each side, so it only changes after panning or zooming out of it (or zooming far in).
+        if (!this.socket || this.socket.readyState !== WebSocket.OPEN || this.seq === undefined) return;
+
+        var tl = this.screenToBoardSpace(0, 0);
+        var br = this.screenToBoardSpace(window.innerWidth, window.innerHeight);
+        var w = br.x - tl.x, h = br.y - tl.y;
+        var sub = this.viewport;
+        if (!force && sub && tl.x >= sub.x && tl.y >= sub.y && br.x <= sub.x + sub.width && br.y <= sub.y + sub.height
+            && sub.width < w * 4) return;
+
+        this.viewport = {
+            x: Math.floor(tl.x - w / 2),
+            y: Math.floor(tl.y - h / 2),
+            width: Math.ceil(w * 2) + 1,
+            height: Math.ceil(h * 2) + 1
+        };
+        this.socket.send(JSON.stringify($.extend({type: "viewport"}, this.viewport)));
+        // Updates outside the viewport are no longer received, so the last sequence number seen on a pixel packet
+        // doesn't say anything about the rest of the board anymore; keep resyncing from the last full one
+        this.partial = true;
     },
     drawBoard: function (data) {
         var ctx = this.elements.board[0].getContext("2d");
@@ -109,6 +146,26 @@ window.App = {
 
         ctx.putImageData(id, 0, 0);
     },
+    drawRegion: function (data) {
+        // runs alternate between untouched and recolored stretches of the rectangle, row by row
+        var ctx = this.elements.board[0].getContext("2d");
+        ctx.fillStyle = this.palette[data.color];
+        var w = data.x2 - data.x1 + 1;
+        var pos = 0;
+        data.runs.forEach(function (run, i) {
+            if (i % 2 === 1) {
+                for (var end = pos + run; pos < end;) {
+                    // Fill up to the end of the run or the row, whichever comes first
+                    var x = pos % w, y = (pos / w) | 0;
+                    var len = Math.min(end - pos, w - x);
+                    ctx.fillRect(data.x1 + x, data.y1 + y, len, 1);
+                    pos += len;
+                }
+            } else {
+                pos += run;
+            }
+        });
+    },
     initPalette: function () {
         this.palette.forEach(function (color, idx) {
             $("<div>")
@@ -236,11 +293,17 @@ window.App = {
     },
     initSocket: function () {
         var l = window.location;
-        var url = ( (l.protocol === "https:") ? "wss://" : "ws://") + l.host + l.pathname + "ws";
+        var url = ( (l.protocol === "https:") ? "wss://" : "ws://") + l.host + l.pathname + "ws?binary=1";
 
         var ws = new WebSocket(url);
+        ws.binaryType = "arraybuffer";
+        ws.onopen = function () {
+            this.partial = false;
+            this.viewport = null;
+            this.resync();
+        }.bind(this);
         ws.onmessage = function (msg) {
-            var data = JSON.parse(msg.data);
+            var data = typeof msg.data === "string" ? JSON.parse(msg.data) : this.decodeBinary(msg.data);
 
             if (data.type === "pixel") {
                 data.pixels.forEach(function(px) {
@@ -248,6 +311,16 @@ window.App = {
                     ctx.fillStyle = this.palette[px.color];
                     ctx.fillRect(px.x, px.y, 1, 1);
                 }.bind(this));
+                if (this.seq !== undefined && !this.partial && data.seq > this.seq) {
+                    this.seq = data.seq;
+                }
+            } else if (data.type === "region") {
+                this.drawRegion(data);
+                if (this.seq !== undefined && !this.partial && data.seq > this.seq) {
+                    this.seq = data.seq;
+                }
+            } else if (data.type === "resync_required") {
+                this.loadBoard();
             } else if (data.type === "alert") {
                 this.alert(data.message);
             } else if (data.type === "cooldown") {
@@ -277,11 +350,10 @@ window.App = {
             }
         }.bind(this);
         ws.onclose = function () {
-            setTimeout(function () {
-                window.location.reload();
-            }, 10000 * Math.random() + 3000);
+            // Reconnect and only fetch the pixels we missed, rather than reloading everything
+            setTimeout(this.initSocket.bind(this), 10000 * Math.random() + 3000);
             this.alert("Lost connection to server, reconnecting...")
-        };
+        }.bind(this);
 
         $(".board-container").show();
         $(".ui").show();
@@ -289,6 +361,23 @@ window.App = {
 
         this.socket = ws;
     },
+    decodeBinary: function (buffer) {
+        // See space.pxls.server.BinaryPacket for the frame layout
+        var view = new DataView(buffer);
+        var op = view.getUint8(0);
+        if (op === 1) {
+            var pixels = [];
+            for (var off = 9; off + 5 <= view.byteLength; off += 5) {
+                pixels.push({x: view.getUint16(off), y: view.getUint16(off + 2), color: view.getUint8(off + 4)});
+            }
+            return {type: "pixel", seq: view.getFloat64(1), pixels: pixels};
+        } else if (op === 2) {
+            return {type: "cooldown", wait: view.getFloat32(1)};
+        } else if (op === 3) {
+            return {type: "users", count: view.getUint32(1)};
+        }
+        return {};
+    },
     initGrid: function () {
         $(document.body).keydown(function (evt) {
             if (evt.keyCode === 71) {
@@ -318,6 +407,9 @@ window.App = {
             .css("transform", "translate(" + Math.floor((-xx.x % 1) * this.scale) + "px," + Math.floor((-xx.y % 1) * this.scale) + "px)");
 
         this.elements.grid.css("opacity", (this.scale - 2) / 6)
+
+        clearTimeout(this.subscribeTimeout);
+        this.subscribeTimeout = setTimeout(this.subscribe.bind(this, false), 250);
     },
     screenToBoardSpace: function (screenX, screenY) {
         var boardBox = this.elements.board[0].getBoundingClientRect();
@@ -0,0 +1,61 @@
+package space.pxls.bench;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import space.pxls.App;
+import space.pxls.user.User;
+import space.pxls.user.UserManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Starts the application once per benchmark JVM, with its storage in a temporary directory and an in-memory H2
+ * database in MySQL mode standing in for MariaDB.
+ */
+public class BenchApp {
+    private static boolean started;
+
+    public static void start() {
+        start(new HashMap<>());
+    }
+
+    /**
+     * @param overrides config values to use on top of the benchmark defaults
+     */
+    public static synchronized void start(Map<String, Object> overrides) {
+        if (started) return;
+
+        Map<String, Object> defaults = new HashMap<>();
+        try {
+            defaults.put("server.storage", Files.createTempDirectory("pxls-bench").toString());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create benchmark storage", e);
+        }
+        defaults.put("database.driver", "org.h2.Driver");
+        defaults.put("database.url", "jdbc:h2:mem:pxls;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        defaults.put("database.pool.leakDetectionThreshold", "0");
+        // Placements going to the database are part of what is measured, but must never hold up the benchmark
+        defaults.put("database.writer.backpressure", "DROP");
+
+        Config config = ConfigFactory.parseMap(overrides)
+                .withFallback(ConfigFactory.parseMap(defaults))
+                .withFallback(ConfigFactory.load());
+        App.init(config);
+        started = true;
+    }
+
+    /**
+     * @return the user with this name, signed up first if needed
+     */
+    public static User user(String name) {
+        UserManager users = App.getUserManager();
+        User user = users.getByName(name);
+        if (user == null) {
+            user = users.signUp(name, users.generateUserCreationToken("bench:" + name));
+        }
+        return user;
+    }
+}
@@ -0,0 +1,57 @@
+package space.pxls.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.App;
+import space.pxls.server.BoardDataCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-board work: a full save to disk, and preparing the snapshot {@code /boarddata} serves. The board is changed
+ * before every invocation, so neither can be skipped as up to date.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BoardBenchmark {
+    private BoardDataCache boardData;
+    private int next;
+
+    @Setup
+    public void setup() {
+        BenchApp.start();
+        boardData = new BoardDataCache(App.getBoard(), App.getBoardWriter(), App.getHistory());
+    }
+
+    @Setup(Level.Invocation)
+    public void touch() throws Exception {
+        int i = next++;
+        App.getBoardWriter().call(() -> {
+            App.getBoard().set(i % App.getWidth(), (i / App.getWidth()) % App.getHeight(), i & 15);
+            return null;
+        }).get();
+    }
+
+    @Benchmark
+    public void save() throws Exception {
+        App.getBoardSaver().requestSave().get();
+    }
+
+    @Benchmark
+    public void boardData() {
+        boardData.refresh();
+    }
+}
@@ -0,0 +1,66 @@
+package space.pxls.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.server.Packet;
+import space.pxls.server.PacketDecoder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding inbound frames with the streaming {@link PacketDecoder}, against parsing into a tree and binding that, as
+ * the socket listener used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"{\"type\":\"placepixel\",\"x\":512,\"y\":384,\"color\":5}", "{\"x\":512,\"y\":384,\"color\":5,\"type\":\"placepixel\"}",
+            "{\"type\":\"viewport\",\"x\":100,\"y\":200,\"width\":1280,\"height\":720}"})
+    public String frame;
+
+    private Gson gson;
+    private PacketDecoder decoder;
+
+    @Setup
+    public void setup() {
+        gson = new Gson();
+        decoder = new PacketDecoder(gson)
+                .register("placepixel", Packet.ClientPlace.class, Packet.ClientPlace::new)
+                .register("resync", Packet.ClientResync.class, Packet.ClientResync::new)
+                .register("viewport", Packet.ClientViewport.class, Packet.ClientViewport::new)
+                .register("captcha", Packet.ClientCaptcha.class, Packet.ClientCaptcha::new)
+                .register("command", Packet.ClientAdminCommand.class, Packet.ClientAdminCommand::new);
+    }
+
+    @Benchmark
+    public Object streaming() {
+        return decoder.decode(frame);
+    }
+
+    @Benchmark
+    public Object tree() {
+        JsonObject json = gson.fromJson(frame, JsonObject.class);
+        String type = json.get("type").getAsString();
+        if (type.equals("placepixel")) return gson.fromJson(json, Packet.ClientPlace.class);
+        if (type.equals("resync")) return gson.fromJson(json, Packet.ClientResync.class);
+        if (type.equals("viewport")) return gson.fromJson(json, Packet.ClientViewport.class);
+        if (type.equals("captcha")) return gson.fromJson(json, Packet.ClientCaptcha.class);
+        if (type.equals("command")) return gson.fromJson(json, Packet.ClientAdminCommand.class);
+        return null;
+    }
+}
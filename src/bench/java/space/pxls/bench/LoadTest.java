@@ -0,0 +1,456 @@
+package space.pxls.bench;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.undertow.server.DefaultByteBufferPool;
+import io.undertow.websockets.client.WebSocketClient;
+import io.undertow.websockets.client.WebSocketClientNegotiation;
+import io.undertow.websockets.core.AbstractReceiveListener;
+import io.undertow.websockets.core.BufferedBinaryMessage;
+import io.undertow.websockets.core.BufferedTextMessage;
+import io.undertow.websockets.core.CloseMessage;
+import io.undertow.websockets.core.WebSocketChannel;
+import io.undertow.websockets.core.WebSockets;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Pooled;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import space.pxls.App;
+import space.pxls.server.BinaryPacket;
+import space.pxls.server.UndertowServer;
+import space.pxls.user.User;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the server in-process on an in-memory database and hits it with synthetic WebSocket clients, each logged in
+ * through a session created up front. Clients place pixels inside their viewport at a steady average rate, pan around
+ * in one of a few patterns and solve captchas against the local verifier when asked. Reports how long connecting took,
+ * how long each placement took to come back in a broadcast, and the process's CPU and heap use, as JSON.
+ *
+ * <p>Options are given as {@code key=value} arguments, see {@link #DEFAULTS}:
+ * {@code mvn -Pbench compile exec:exec@loadtest -Dloadtest.args="clients=2000 duration=2m pan=DRIFT"}
+ */
+public class LoadTest {
+    private static final String DEFAULTS = String.join("\n",
+            "clients: 1000",
+            // Connections opened per second while ramping up
+            "connectRate: 200",
+            "connectThreads: 16",
+            // Measured run, starting once every client had its chance to connect
+            "duration: 60s",
+            // Average time between two placements of one client
+            "placeInterval: 5s",
+            // NONE (no viewport, every pixel is received), STATIC, RANDOM (jump elsewhere) or DRIFT (small steps)
+            "pan: RANDOM",
+            "panInterval: 3s",
+            "viewportWidth: 320",
+            "viewportHeight: 240",
+            "binary: false",
+            "ioThreads: 4",
+            "report: target/loadtest-report.json");
+
+    private enum Pan {
+        NONE, STATIC, RANDOM, DRIFT
+    }
+
+    private final Config options;
+    private final Gson gson = new Gson();
+    private final int width;
+    private final int height;
+    private final Pan pan;
+    private final int viewportWidth;
+    private final int viewportHeight;
+
+    private final Histogram latency = new Histogram(new UniformReservoir(100000));
+    private final Histogram connectTime = new Histogram(new UniformReservoir(100000));
+    private final Counter connected = new Counter();
+    private final Counter connectFailed = new Counter();
+    private final Counter disconnected = new Counter();
+    private final Counter placed = new Counter();
+    private final Counter confirmed = new Counter();
+    private final Counter captchas = new Counter();
+    private final Counter framesReceived = new Counter();
+    private final Counter pixelsReceived = new Counter();
+    private final List<double[]> resourceSamples = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean running = true;
+
+    private LoadTest(Config options) {
+        this.options = options;
+        this.width = App.getWidth();
+        this.height = App.getHeight();
+        this.pan = options.getEnum(Pan.class, "pan");
+        this.viewportWidth = Math.min(width, options.getInt("viewportWidth"));
+        this.viewportHeight = Math.min(height, options.getInt("viewportHeight"));
+    }
+
+    private class Client extends AbstractReceiveListener {
+        final String token;
+        WebSocketChannel channel;
+        int x;
+        int y;
+        // Placements waiting to come back, by position and color, with the time they were sent
+        final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+
+        Client(String token) {
+            this.token = token;
+        }
+
+        void moveViewport() {
+            Random random = ThreadLocalRandom.current();
+            if (pan == Pan.DRIFT && channel != null) {
+                x = Math.max(0, Math.min(width - viewportWidth, x + random.nextInt(viewportWidth / 2 + 1) - viewportWidth / 4));
+                y = Math.max(0, Math.min(height - viewportHeight, y + random.nextInt(viewportHeight / 2 + 1) - viewportHeight / 4));
+            } else {
+                x = random.nextInt(width - viewportWidth + 1);
+                y = random.nextInt(height - viewportHeight + 1);
+            }
+            if (pan != Pan.NONE && channel != null) {
+                send("{\"type\":\"viewport\",\"x\":" + x + ",\"y\":" + y + ",\"width\":" + viewportWidth + ",\"height\":" + viewportHeight + "}");
+            }
+        }
+
+        void place() {
+            Random random = ThreadLocalRandom.current();
+            int px = pan == Pan.NONE ? random.nextInt(width) : x + random.nextInt(viewportWidth);
+            int py = pan == Pan.NONE ? random.nextInt(height) : y + random.nextInt(viewportHeight);
+            int color = random.nextInt(App.getSettings().getPaletteSize());
+            pending.put(key(px, py, color), System.nanoTime());
+            placed.inc();
+            send("{\"type\":\"placepixel\",\"x\":" + px + ",\"y\":" + py + ",\"color\":" + color + "}");
+        }
+
+        void send(String frame) {
+            if (channel.isOpen()) WebSockets.sendText(frame, channel, null);
+        }
+
+        void received(int px, int py, int color, long now) {
+            pixelsReceived.inc();
+            Long sent = pending.remove(key(px, py, color));
+            if (sent != null) {
+                latency.update(now - sent);
+                confirmed.inc();
+            }
+        }
+
+        @Override
+        protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) {
+            long now = System.nanoTime();
+            framesReceived.inc();
+            JsonObject packet = gson.fromJson(message.getData(), JsonObject.class);
+            String type = packet.get("type").getAsString();
+            if (type.equals("pixel")) {
+                JsonArray pixels = packet.getAsJsonArray("pixels");
+                for (JsonElement element : pixels) {
+                    JsonObject pixel = element.getAsJsonObject();
+                    received(pixel.get("x").getAsInt(), pixel.get("y").getAsInt(), pixel.get("color").getAsInt(), now);
+                }
+            } else if (type.equals("captcha_required")) {
+                captchas.inc();
+                send("{\"type\":\"captcha\",\"token\":\"loadtest\"}");
+            }
+        }
+
+        @Override
+        protected void onFullBinaryMessage(WebSocketChannel channel, BufferedBinaryMessage message) {
+            long now = System.nanoTime();
+            framesReceived.inc();
+            Pooled<ByteBuffer[]> data = message.getData();
+            try {
+                ByteBuffer buf = WebSockets.mergeBuffers(data.getResource());
+                if (buf.get() != BinaryPacket.PIXEL) return;
+                buf.getDouble();
+                while (buf.remaining() >= BinaryPacket.PIXEL_SIZE) {
+                    received(buf.getShort() & 0xffff, buf.getShort() & 0xffff, buf.get() & 0xff, now);
+                }
+            } finally {
+                data.free();
+            }
+        }
+
+        @Override
+        protected void onCloseMessage(CloseMessage cm, WebSocketChannel channel) {
+            if (running) disconnected.inc();
+        }
+    }
+
+    private int key(int x, int y, int color) {
+        return (x + y * width) * 16 + color;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config options = ConfigFactory.parseString(String.join("\n", args)).withFallback(ConfigFactory.parseString(DEFAULTS));
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("server.port", port);
+        // Clients pace themselves, and all of them come from the same address
+        overrides.put("cooldown", "0s");
+        overrides.put("server.rateLimit.ip.rate", 1000000);
+        overrides.put("server.rateLimit.ip.burst", 1000000);
+        overrides.put("captcha.verifier", "local");
+        BenchApp.start(overrides);
+        new UndertowServer(port).start();
+
+        new LoadTest(options).run(port);
+        System.exit(0);
+    }
+
+    private void run(int port) throws Exception {
+        int clientCount = options.getInt("clients");
+        System.out.println("Creating " + clientCount + " users and sessions");
+        long setupStart = System.nanoTime();
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            User user = BenchApp.user("load" + i);
+            clients.add(new Client(App.getUserManager().logIn(user)));
+        }
+        long setupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart);
+
+        XnioWorker worker = Xnio.getInstance().createWorker(OptionMap.builder()
+                .set(Options.WORKER_IO_THREADS, options.getInt("ioThreads"))
+                .set(Options.THREAD_DAEMON, true)
+                .getMap());
+        DefaultByteBufferPool buffers = new DefaultByteBufferPool(false, 16384);
+        URI uri = new URI("ws://127.0.0.1:" + port + "/ws" + (options.getBoolean("binary") ? "?binary=1" : ""));
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, daemon("loadtest-scheduler"));
+        ExecutorService connector = Executors.newFixedThreadPool(options.getInt("connectThreads"), daemon("loadtest-connect"));
+        scheduler.scheduleAtFixedRate(this::sampleResources, 0, 1, TimeUnit.SECONDS);
+
+        long placeInterval = options.getDuration("placeInterval", TimeUnit.MILLISECONDS);
+        long panInterval = options.getDuration("panInterval", TimeUnit.MILLISECONDS);
+        double connectRate = options.getDouble("connectRate");
+        System.out.println("Connecting to " + uri);
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            long delay = (long) (i * 1000 / connectRate);
+            scheduler.schedule(() -> connector.execute(() -> connect(client, worker, buffers, uri, scheduler, placeInterval, panInterval)),
+                    delay, TimeUnit.MILLISECONDS);
+        }
+
+        long rampMillis = (long) (clients.size() * 1000 / connectRate);
+        long duration = options.getDuration("duration", TimeUnit.MILLISECONDS);
+        Thread.sleep(rampMillis);
+        long measureStart = System.nanoTime();
+        long placedBefore = placed.getCount();
+        long confirmedBefore = confirmed.getCount();
+        Thread.sleep(duration);
+        running = false;
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        long placedDuring = placed.getCount() - placedBefore;
+        long confirmedDuring = confirmed.getCount() - confirmedBefore;
+        scheduler.shutdownNow();
+        // Let the last ticks arrive
+        Thread.sleep(1000);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("options", options.root().unwrapped());
+        report.put("setupMillis", setupMillis);
+        report.put("rampMillis", rampMillis);
+        report.put("measuredSeconds", seconds);
+
+        Map<String, Object> connections = new LinkedHashMap<>();
+        connections.put("connected", connected.getCount());
+        connections.put("failed", connectFailed.getCount());
+        connections.put("closedByServer", disconnected.getCount());
+        connections.put("setupMillis", percentiles(connectTime.getSnapshot(), 1e6));
+        report.put("connections", connections);
+
+        Map<String, Object> placements = new LinkedHashMap<>();
+        placements.put("sent", placed.getCount());
+        placements.put("confirmed", confirmed.getCount());
+        placements.put("sentPerSecond", placedDuring / seconds);
+        placements.put("confirmedPerSecond", confirmedDuring / seconds);
+        placements.put("captchas", captchas.getCount());
+        placements.put("latencyMillis", percentiles(latency.getSnapshot(), 1e6));
+        report.put("placements", placements);
+
+        Map<String, Object> received = new LinkedHashMap<>();
+        received.put("frames", framesReceived.getCount());
+        received.put("pixels", pixelsReceived.getCount());
+        received.put("pixelsPerSecond", pixelsReceived.getCount() / seconds);
+        report.put("received", received);
+
+        report.put("process", resources());
+        report.put("server", serverMetrics());
+
+        String json = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create().toJson(report);
+        Path path = Paths.get(options.getString("report"));
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+        System.out.println(json);
+        System.out.println("Report written to " + path.toAbsolutePath());
+
+        for (Client client : clients) {
+            if (client.channel != null) client.channel.sendClose();
+        }
+        worker.shutdown();
+    }
+
+    private void connect(Client client, XnioWorker worker, DefaultByteBufferPool buffers, URI uri, ScheduledExecutorService scheduler,
+                         long placeInterval, long panInterval) {
+        long start = System.nanoTime();
+        WebSocketChannel channel;
+        try {
+            channel = WebSocketClient.connectionBuilder(worker, buffers, uri)
+                    .setClientNegotiation(new WebSocketClientNegotiation(null, null) {
+                        @Override
+                        public void beforeRequest(Map<String, List<String>> headers) {
+                            headers.put("Cookie", Collections.singletonList("pxls-token=" + client.token));
+                        }
+                    })
+                    .connect().get();
+        } catch (IOException e) {
+            connectFailed.inc();
+            return;
+        }
+        connectTime.update(System.nanoTime() - start);
+        connected.inc();
+
+        client.channel = channel;
+        channel.getReceiveSetter().set(client);
+        channel.resumeReceives();
+        client.moveViewport();
+
+        Random random = ThreadLocalRandom.current();
+        scheduler.scheduleAtFixedRate(client::place, random.nextInt((int) Math.max(1, placeInterval)), placeInterval, TimeUnit.MILLISECONDS);
+        if (pan == Pan.RANDOM || pan == Pan.DRIFT) {
+            scheduler.scheduleAtFixedRate(client::moveViewport, random.nextInt((int) Math.max(1, panInterval)), panInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sampleResources() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double cpu = os instanceof com.sun.management.OperatingSystemMXBean ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad() : -1;
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        resourceSamples.add(new double[]{cpu, heap});
+    }
+
+    /**
+     * CPU and heap of the whole process, which the clients share with the server.
+     */
+    private Map<String, Object> resources() {
+        double cpuSum = 0;
+        double cpuMax = 0;
+        int cpuSamples = 0;
+        double heapMax = 0;
+        synchronized (resourceSamples) {
+            for (double[] sample : resourceSamples) {
+                if (sample[0] >= 0) {
+                    cpuSum += sample[0];
+                    cpuMax = Math.max(cpuMax, sample[0]);
+                    cpuSamples++;
+                }
+                heapMax = Math.max(heapMax, sample[1]);
+            }
+        }
+        long gcMillis = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, gc.getCollectionTime());
+            gcCount += Math.max(0, gc.getCollectionCount());
+        }
+
+        Map<String, Object> process = new LinkedHashMap<>();
+        process.put("processors", Runtime.getRuntime().availableProcessors());
+        process.put("cpuAverage", cpuSamples == 0 ? -1 : cpuSum / cpuSamples);
+        process.put("cpuMax", cpuSamples == 0 ? -1 : cpuMax);
+        process.put("heapMaxUsedBytes", (long) heapMax);
+        process.put("gcCount", gcCount);
+        process.put("gcMillis", gcMillis);
+        return process;
+    }
+
+    /**
+     * The server's own metrics as they stand at the end of the run, timers in milliseconds.
+     */
+    private Map<String, Object> serverMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : App.getMetrics().getMetrics().entrySet()) {
+            Metric metric = entry.getValue();
+            if (metric instanceof Gauge) {
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) metrics.put(entry.getKey(), value);
+            } else if (metric instanceof Counter) {
+                metrics.put(entry.getKey(), ((Counter) metric).getCount());
+            } else if (metric instanceof Meter) {
+                metrics.put(entry.getKey(), ((Meter) metric).getCount());
+            } else if (metric instanceof Timer) {
+                Timer timer = (Timer) metric;
+                if (timer.getCount() == 0) continue;
+                Map<String, Object> summary = percentiles(timer.getSnapshot(), 1e6);
+                summary.put("count", timer.getCount());
+                metrics.put(entry.getKey(), summary);
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                Map<String, Object> summary = percentiles(histogram.getSnapshot(), 1);
+                summary.put("count", histogram.getCount());
+                metrics.put(entry.getKey(), summary);
+            }
+        }
+        return metrics;
+    }
+
+    private static Map<String, Object> percentiles(Snapshot snapshot, double divisor) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("samples", snapshot.size());
+        values.put("mean", snapshot.getMean() / divisor);
+        values.put("p50", snapshot.getMedian() / divisor);
+        values.put("p90", snapshot.getValue(0.9) / divisor);
+        values.put("p99", snapshot.get99thPercentile() / divisor);
+        values.put("p999", snapshot.get999thPercentile() / divisor);
+        values.put("max", snapshot.getMax() / divisor);
+        return values;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package space.pxls.bench;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.App;
+import space.pxls.server.BinaryPacket;
+import space.pxls.server.Packet;
+import space.pxls.user.User;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A placement on the board thread, and encoding the broadcast of a tick's worth of them for JSON and binary clients.
+ * The size of the frame each encoding produces is reported next to its time, as {@code :bytes}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PlaceBenchmark {
+    @Param({"1", "50", "1000"})
+    public int pixels;
+
+    private User user;
+    private Gson gson;
+    private Packet.ServerPlace place;
+    private int next;
+
+    @Setup
+    public void setup() {
+        BenchApp.start();
+        user = BenchApp.user("placebench");
+        gson = App.getGson();
+
+        Random random = new Random(42);
+        List<Packet.ServerPlace.Pixel> batch = new ArrayList<>();
+        for (int i = 0; i < pixels; i++) {
+            batch.add(new Packet.ServerPlace.Pixel(random.nextInt(App.getWidth()), random.nextInt(App.getHeight()), random.nextInt(16)));
+        }
+        place = new Packet.ServerPlace(batch, 1);
+    }
+
+    /**
+     * Bytes in the frame an encode benchmark last produced.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class FrameSize {
+        public long bytes;
+    }
+
+    /**
+     * Through the board writer, as placements from clients go, including the hand-off to the board thread.
+     */
+    @Benchmark
+    public long putPixel() throws Exception {
+        int i = next++ & 0xfffff;
+        return App.getBoardWriter().call(() -> App.putPixel(i % App.getWidth(), (i / App.getWidth()) % App.getHeight(), i & 15, user)).get();
+    }
+
+    @Benchmark
+    public String encodeJson(FrameSize size) {
+        String json = gson.toJson(place);
+        // Only digits and punctuation, so one byte per char
+        size.bytes = json.length();
+        return json;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary(FrameSize size) {
+        ByteBuffer frame = BinaryPacket.encodePlace(place);
+        size.bytes = frame.remaining();
+        return frame;
+    }
+}
@@ -0,0 +1,56 @@
+package space.pxls.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import space.pxls.App;
+import space.pxls.user.User;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-placement checks on a user, and reading the settings they depend on from {@link space.pxls.Settings}
+ * against looking them up in the HOCON config each time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserBenchmark {
+    private User user;
+
+    @Setup
+    public void setup() {
+        BenchApp.start();
+        user = BenchApp.user("userbench");
+    }
+
+    @Benchmark
+    public boolean canPlace() {
+        return user.canPlace();
+    }
+
+    @Benchmark
+    public boolean updateCaptchaFlagPrePlace() {
+        return user.updateCaptchaFlagPrePlace();
+    }
+
+    @Benchmark
+    public long settingsCooldown() {
+        return App.getSettings().getCooldownMillis();
+    }
+
+    @Benchmark
+    public long configCooldown() {
+        return App.getConfig().getDuration("cooldown", TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,5 +1,7 @@
 package space.pxls;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.gson.Gson;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigException;
@@ -7,17 +9,26 @@ import com.typesafe.config.ConfigFactory;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import space.pxls.board.BackupStore;
+import space.pxls.board.Board;
+import space.pxls.board.BoardSaver;
+import space.pxls.board.BoardWriter;
+import space.pxls.board.HeapBoard;
+import space.pxls.board.MappedBoard;
+import space.pxls.board.PlacementHistory;
+import space.pxls.board.PlacementJournal;
+import space.pxls.board.TileIndex;
 import space.pxls.data.Database;
 import space.pxls.user.User;
 import space.pxls.server.UndertowServer;
 import space.pxls.user.UserManager;
-import space.pxls.util.Timer;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,58 +37,97 @@ import java.util.concurrent.TimeUnit;
 public class App {
     private static Gson gson;
     private static Config config;
+    private static volatile Settings settings;
+    private static final MetricRegistry metrics = new MetricRegistry();
     private static Database database;
     private static UserManager userManager;
     public static Logger pixelLogger;
 
     private static int width;
     private static int height;
-    private static byte[] board;
+    private static Board board;
+    private static PlacementJournal journal;
+    private static TileIndex tiles;
+    private static PlacementHistory history;
+    private static BoardWriter boardWriter;
 
-    private static Timer mapSaveTimer;
-    private static Timer mapBackupTimer;
+    private static BoardSaver boardSaver;
 
     public static void main(String[] args) {
-        gson = new Gson();
+        init(loadConfig());
 
-        loadConfig();
-        loadMap();
+        // Started first so a bad interval stops the server before it takes any placements
+        boardSaver.start(config.getDuration("board.saveInterval", TimeUnit.MILLISECONDS), config.getDuration("board.backupInterval", TimeUnit.MILLISECONDS));
+
+        new UndertowServer(config.getInt("server.port")).start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Let queued placements land first, the final save then runs on this thread
+            boardWriter.shutdown();
+            boardSaver.shutdown();
+            try {
+                journal.close();
+                board.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            userManager.shutdown();
+            database.close();
+        }));
+    }
+
+    /**
+     * Loads the board and opens the journal, the database and the saver, without starting the server or scheduling
+     * saves. Benchmarks and tools call this with their own configuration to get a working instance.
+     */
+    public static void init(Config cfg) {
+        gson = new Gson();
+        config = cfg;
+        settings = new Settings(cfg);
 
         pixelLogger = LogManager.getLogger("Pixels");
 
         width = config.getInt("board.width");
         height = config.getInt("board.height");
-        if (board == null) board = new byte[width * height];
-        else if (board.length != width * height)
-        {
-            // TODO: Save should contain current board size for adequate relocation of data.
-            byte[] newBoard = new byte[width * height];
-            int min = newBoard.length < board.length ? newBoard.length : board.length;
-            while (min >= 0)
-            {
-                newBoard[min] = board[min];
-                min--;
-            }
-        }
-        
+        loadMap();
+        tiles = new TileIndex(width, height, config.getInt("board.tileSize"));
+        history = new PlacementHistory(config.getInt("server.resyncHistory"), journal.getLastSeq());
+        boardWriter = new BoardWriter(config.getInt("board.writerQueueSize"));
+        boardWriter.start();
+
         database = new Database();
         userManager = new UserManager();
 
-        new UndertowServer(config.getInt("server.port")).start();
+        try {
+            boardSaver = new BoardSaver(board, boardWriter, journal, getStorageDir(), loadBackupStore());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open backup store", e);
+        }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            saveMapBackup();
-            saveMapForce();
-        }));
-        saveMap();
+        registerMetrics();
     }
 
-    private static void loadConfig() {
-        config = ConfigFactory.parseFile(new File("pxls.conf")).withFallback(ConfigFactory.load());
-        config.checkValid(ConfigFactory.load());
+    private static void registerMetrics() {
+        metrics.register("pxls.board.writer.rejected", boardWriter.getRejected());
+        metrics.register("pxls.board.writer.queue", (Gauge<Integer>) boardWriter::getQueueSize);
+        metrics.register("pxls.board.save", boardSaver.getSaveDuration());
+        metrics.register("pxls.board.save.bytes", boardSaver.getBytesWritten());
 
-        mapSaveTimer = new Timer(config.getDuration("board.saveInterval", TimeUnit.SECONDS));
-        mapBackupTimer = new Timer(config.getDuration("board.backupInterval", TimeUnit.SECONDS));
+        metrics.register("pxls.db.writer.dropped", database.getPixelWriter().getDropped());
+        metrics.register("pxls.db.writer.flushes", database.getPixelWriter().getFlushes());
+        metrics.register("pxls.db.writer.queue", (Gauge<Integer>) database.getPixelWriter()::getQueueSize);
+
+        metrics.register("pxls.users.cache.hits", userManager.getUserCache().getHits());
+        metrics.register("pxls.users.cache.misses", userManager.getUserCache().getMisses());
+        metrics.register("pxls.users.cache.negativeHits", userManager.getUserCache().getNegativeHits());
+        metrics.register("pxls.users.cache.size", (Gauge<Integer>) userManager.getUserCache()::size);
+        metrics.register("pxls.sessions", (Gauge<Integer>) userManager.getSessions()::size);
+    }
+
+    private static Config loadConfig() {
+        Config cfg = ConfigFactory.parseFile(new File("pxls.conf")).withFallback(ConfigFactory.load());
+        cfg.checkValid(ConfigFactory.load());
+        return cfg;
     }
     
     public static Boolean reloadConfig()
@@ -86,7 +136,9 @@ public class App {
         {
             Config newCfg = ConfigFactory.parseFile(new File("pxls.conf")).withFallback(ConfigFactory.load());
             newCfg.checkValid(ConfigFactory.load());
+            Settings newSettings = new Settings(newCfg);
             config = newCfg;
+            settings = newSettings;
             pixelLogger.log(Level.INFO, "Reloaded config file");
         }
         catch (ConfigException e)
@@ -97,6 +149,13 @@ public class App {
     }
 
 
+    /**
+     * Registry every subsystem reports to, exported on {@code /metrics}.
+     */
+    public static MetricRegistry getMetrics() {
+        return metrics;
+    }
+
     public static Gson getGson() {
         return gson;
     }
@@ -105,6 +164,10 @@ public class App {
         return config;
     }
 
+    public static Settings getSettings() {
+        return settings;
+    }
+
     public static int getWidth() {
         return width;
     }
@@ -113,116 +176,109 @@ public class App {
         return height;
     }
 
-    public static byte[] getBoardData() {
+    public static Board getBoard() {
         return board;
     }
 
+    public static TileIndex getTiles() {
+        return tiles;
+    }
+
+    public static PlacementHistory getHistory() {
+        return history;
+    }
+
+    public static BoardWriter getBoardWriter() {
+        return boardWriter;
+    }
+
     public static Path getStorageDir() {
         return Paths.get(config.getString("server.storage"));
     }
 
     public static List<String> getPalette() {
-        return config.getStringList("board.palette");
+        return settings.getPalette();
     }
 
     public static boolean isCaptchaEnabled() {
-        return config.hasPath("captcha.key") && config.hasPath("captcha.secret");
+        return settings.isCaptchaEnabled();
     }
 
-    public static void blank(User user, int x1, int y1, int x2, int y2, int to, int from)
-    {
-        saveMapBackup();
-        saveMapForce();
-        // Would use optimization
-        
-        if (to < 0 || to >= getPalette().size() || from >= getPalette().size()) return;
-        if (from < 0) from = -1; // Clamp to -1
-        // Clamp
-        if (x1 < 0) x1 = 0;
-        else if (x1 >= width) x1 = width - 1;
-        if (y1 < 0) y1 = 0;
-        else if (y1 >= height) y1 = height - 1;
-        
-        if (x2 < 0) x2 = 0;
-        else if (x2 >= width) x2 = width - 1;
-        if (y2 < 0) y2 = 0;
-        else if (y2 >= height) y2 = height - 1;
-        
-        // Swap
-        if (x2 < x1)
-        {
-            int tmp = x2;
-            x2 = x1;
-            x1 = tmp;
-        }
-        if (y2 < y1)
-        {
-            int tmp = y2;
-            y2 = y1;
-            y1 = tmp;
-        }
-        
-        int pos;
-        int x;
-        int y = y1;
-        byte bto = (byte) to;
-        int who = user.getId();
-        while (y <= y2)
-        {
-            pos = y * width + x1;
-            x = x1;
-            while (x <= x2)
-            {
-                if (from == -1 || board[pos + x] == (byte) from)
-                {
-                    board[pos + x] = bto;
-                    database.blankStep(who, x, y, bto);
-                }
-                x++;
-            }
-            y++;
-        }
-        pixelLogger.log(Level.INFO, user.getName() + " Blank operation: " + x1 + " " + y1 + " > " + x2 + " " + y2 + " : " + (from == -1 ? to : from + " => " + to));
-        database.blankFinish(who);
-    }
-    public static void putPixel(int x, int y, int color, User user) {
-        if (x < 0 || x >= width || y < 0 || y >= height || color < 0 || color >= getPalette().size()) return;
-        board[x + y * width] = (byte) color;
+    /**
+     * Must run on the board thread, see {@link BoardWriter}. The placement is journaled before it is applied; if that
+     * fails, nothing else happens and the board, tiles and database are left as they were.
+     *
+     * @return the sequence number of the placement, or -1 if it was out of bounds or could not be journaled
+     */
+    public static long putPixel(int x, int y, int color, User user) {
+        if (x < 0 || x >= width || y < 0 || y >= height || color < 0 || color >= settings.getPaletteSize()) return -1;
+        long seq = journal(x, y, color, user.getId());
+        if (seq < 0) return -1;
+        history.record(seq, x, y, color);
+        board.set(x, y, color);
+        tiles.touch(x, y);
         pixelLogger.log(Level.INFO, user.getName() + " " + x + " " + y + " " + color);
         database.placePixel(x, y, color, user);
+        return seq;
     }
 
-    private static void loadMap() {
+    /**
+     * Appends a placement to the journal. Must run on the board thread, before the placement is applied.
+     *
+     * @return the sequence number of the placement, or -1 if the journal could not be written
+     */
+    static long journal(int x, int y, int color, int who) {
         try {
-            Path boardPath = getStorageDir().resolve("board.dat");
-            if (Files.exists(boardPath))
-                board = Files.readAllBytes(boardPath);
+            return journal.append(x, y, color, who, System.currentTimeMillis());
         } catch (IOException e) {
-            e.printStackTrace();
+            pixelLogger.log(Level.ERROR, "Failed to journal placement " + x + " " + y + " " + color + " by " + who, e);
+            return -1;
         }
     }
 
-    public static void saveMap() {
-        mapSaveTimer.run(App::saveMapForce);
-        mapBackupTimer.run(App::saveMapBackup);
-    }
-
-    private static void saveMapForce() {
-        saveMapToDir(getStorageDir().resolve("board.dat"));
-    }
+    private static void loadMap() {
+        try {
+            Path boardPath = getStorageDir().resolve("board.dat");
+            if (config.getBoolean("board.mapped")) {
+                board = new MappedBoard(width, height, boardPath);
+            } else {
+                board = new HeapBoard(width, height, Files.exists(boardPath) ? Files.readAllBytes(boardPath) : null);
+            }
 
-    private static void saveMapBackup() {
-        saveMapToDir(getStorageDir().resolve("backups/board." + System.currentTimeMillis() + ".dat"));
-    }
+            long snapshotSeq = 0;
+            Path metaPath = getStorageDir().resolve("board.dat.meta");
+            if (Files.exists(metaPath)) {
+                String[] meta = new String(Files.readAllBytes(metaPath), "UTF-8").trim().split(" ");
+                // Older saves also stored a journal offset after the sequence number, it is no longer used
+                snapshotSeq = Long.parseLong(meta[0]);
+            }
 
-    private static void saveMapToDir(Path path) {
-        try {
-            Files.write(path, board);
+            // Replay everything placed after the snapshot was taken
+            journal = new PlacementJournal(getStorageDir().resolve("board.journal"));
+            int replayed = journal.recover(snapshotSeq, (seq, x, y, color, who, time) -> {
+                if (x >= 0 && x < width && y >= 0 && y < height) board.set(x, y, color);
+            });
+            if (replayed > 0) pixelLogger.log(Level.INFO, "Replayed " + replayed + " journaled placements over board snapshot");
+            journal.startSync(config.getDuration("board.journalSyncInterval", TimeUnit.MILLISECONDS));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private static BackupStore loadBackupStore() throws IOException {
+        List<BackupStore.RetentionTier> retention = new ArrayList<>();
+        for (Config tier : config.getConfigList("board.backups.retention")) {
+            retention.add(new BackupStore.RetentionTier(
+                    tier.hasPath("maxAge") ? tier.getDuration("maxAge", TimeUnit.MILLISECONDS) : Long.MAX_VALUE,
+                    tier.getDuration("every", TimeUnit.MILLISECONDS)));
+        }
+        return new BackupStore(getStorageDir().resolve("backups"), config.getDuration("board.backups.keyframeInterval", TimeUnit.MILLISECONDS), retention);
+    }
+
+    public static BoardSaver getBoardSaver() {
+        return boardSaver;
+    }
+
     public static UserManager getUserManager() {
         return userManager;
     }
@@ -0,0 +1,215 @@
+package space.pxls;
+
+import org.apache.logging.log4j.Level;
+import space.pxls.board.Board;
+import space.pxls.data.PixelWriter;
+import space.pxls.user.User;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fills a rectangle of the board with one color, or replaces one color with another inside it. The rectangle is
+ * processed a few rows at a time, each chunk a separate task on the board thread so placements keep flowing in between.
+ * Changed pixels are journaled but left out of the resync history, which is reset past each chunk instead.
+ * Every chunk finds and applies its changes in a single pass and hands them to the {@link Listener} as runs; once all
+ * chunks are done the changed pixels are written to the database as one batch, off the board thread, each stamped
+ * with the time its chunk was applied.
+ */
+public class RegionOperation {
+    public interface Listener {
+        /**
+         * Pixels changed by one chunk, covering rows {@code y1} to {@code y2} of the rectangle (inclusive). {@code runs}
+         * alternates between the lengths of unchanged and changed stretches, in row-major order over the chunk,
+         * starting with an unchanged one.
+         *
+         * @param seq sequence number of the last changed pixel
+         */
+        void chunk(int x1, int y1, int x2, int y2, int color, int[] runs, BitSet changed, long seq);
+
+        void progress(long done, long total);
+
+        void finished(int changed);
+    }
+
+    private static final ExecutorService persister = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pxls-region-persister");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final User user;
+    private final int x1;
+    private final int y1;
+    private final int x2;
+    private final int y2;
+    private final int to;
+    private final int from;
+    private final Listener listener;
+    private final int chunkRows;
+
+    private int nextRow;
+    private int[] changed = new int[1024];
+    private int changedCount;
+    // For each chunk that changed anything: where its pixels end in changed, and when it ran on the board thread
+    private int[] chunkEnds = new int[16];
+    private long[] chunkTimes = new long[16];
+    private int chunkCount;
+
+    /**
+     * @param from the color to replace, or -1 to fill every pixel of the rectangle
+     */
+    public RegionOperation(User user, int x1, int y1, int x2, int y2, int to, int from, Listener listener) {
+        int width = App.getWidth();
+        int height = App.getHeight();
+        this.user = user;
+        this.x1 = clamp(Math.min(x1, x2), width);
+        this.y1 = clamp(Math.min(y1, y2), height);
+        this.x2 = clamp(Math.max(x1, x2), width);
+        this.y2 = clamp(Math.max(y1, y2), height);
+        this.to = to;
+        this.from = from < 0 ? -1 : from;
+        this.listener = listener;
+        this.chunkRows = Math.max(1, App.getConfig().getInt("board.regionChunkSize") / (this.x2 - this.x1 + 1));
+        this.nextRow = this.y1;
+    }
+
+    /**
+     * Queues the first chunk on the board thread.
+     *
+     * @return false if the colors are invalid or the board queue is full
+     */
+    public boolean start() {
+        int paletteSize = App.getSettings().getPaletteSize();
+        if (to < 0 || to >= paletteSize || from >= paletteSize) return false;
+
+        return App.getBoardWriter().submit(() -> {
+            // Runs on the board thread, so the backup holds exactly the board before the first chunk
+            App.getBoardSaver().backup();
+            runChunks();
+        });
+    }
+
+    /**
+     * Runs chunks until one gets queued behind other writes, or the operation is done.
+     */
+    private void runChunks() {
+        // Go to the back of the queue after each chunk; if it is full, carry on right away rather than stall the
+        // operation
+        while (runChunk()) {
+            if (App.getBoardWriter().submit(this::runChunks)) return;
+        }
+        finish();
+    }
+
+    /**
+     * @return whether rows are left for another chunk
+     */
+    private boolean runChunk() {
+        Board board = App.getBoard();
+        int width = board.getWidth();
+        int rowEnd = Math.min(y2, nextRow + chunkRows - 1);
+        int chunkWidth = x2 - x1 + 1;
+        byte color = (byte) to;
+        int who = user.getId();
+
+        BitSet mask = new BitSet();
+        int[] runs = new int[16];
+        int runCount = 1;
+        boolean inChange = false;
+        long seq = -1;
+        // Stamped here rather than when persisting, so the rows sort correctly against placements made in between
+        long time = System.currentTimeMillis();
+
+        for (int y = nextRow; y <= rowEnd; y++) {
+            int row = y * width;
+            for (int x = x1; x <= x2; x++) {
+                int current = board.getAt(row + x);
+                boolean change = current != to && (from == -1 || current == from);
+                if (change) {
+                    // Journaled first, a pixel that can't be is left as it was
+                    long pixelSeq = App.journal(x, y, to, who);
+                    if (pixelSeq < 0) {
+                        change = false;
+                    } else {
+                        seq = pixelSeq;
+                        board.setAt(row + x, color);
+                        mask.set((y - nextRow) * chunkWidth + (x - x1));
+                        addChanged(row + x);
+                    }
+                }
+
+                if (change != inChange) {
+                    inChange = change;
+                    if (++runCount > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                }
+                runs[runCount - 1]++;
+            }
+        }
+
+        App.getTiles().touchRegion(x1, nextRow, x2, rowEnd);
+        if (!mask.isEmpty()) {
+            // The chunk's pixels are not kept for resyncing, a big fill would push everything else out of the history;
+            // clients that missed the chunk reload the board instead
+            App.getHistory().reset(seq);
+            addChunk(time);
+            listener.chunk(x1, nextRow, x2, rowEnd, to, Arrays.copyOf(runs, runCount), mask, seq);
+        }
+
+        nextRow = rowEnd + 1;
+        if (nextRow > y2) return false;
+        listener.progress((long) (nextRow - y1) * chunkWidth, (long) (y2 - y1 + 1) * chunkWidth);
+        return true;
+    }
+
+    private void finish() {
+        int who = user.getId();
+        App.pixelLogger.log(Level.INFO, user.getName() + " Region operation: " + x1 + " " + y1 + " > " + x2 + " " + y2 + " : "
+                + (from == -1 ? to : from + " => " + to) + ", " + changedCount + " pixels changed");
+        persister.execute(() -> {
+            App.getDatabase().placeRegion(this::placements, who);
+            listener.finished(changedCount);
+        });
+    }
+
+    private void addChanged(int index) {
+        if (changedCount == changed.length) changed = Arrays.copyOf(changed, changed.length * 2);
+        changed[changedCount++] = index;
+    }
+
+    private void addChunk(long time) {
+        if (chunkCount == chunkEnds.length) {
+            chunkEnds = Arrays.copyOf(chunkEnds, chunkEnds.length * 2);
+            chunkTimes = Arrays.copyOf(chunkTimes, chunkTimes.length * 2);
+        }
+        chunkEnds[chunkCount] = changedCount;
+        chunkTimes[chunkCount++] = time;
+    }
+
+    private Iterator<PixelWriter.Placement> placements() {
+        int width = App.getWidth();
+        return new Iterator<PixelWriter.Placement>() {
+            private int i;
+            private int chunk;
+
+            @Override
+            public boolean hasNext() {
+                return i < changedCount;
+            }
+
+            @Override
+            public PixelWriter.Placement next() {
+                while (i >= chunkEnds[chunk]) chunk++;
+                int index = changed[i++];
+                return new PixelWriter.Placement(index % width, index / width, to, user.getId(), chunkTimes[chunk]);
+            }
+        };
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+}
@@ -0,0 +1,51 @@
+package space.pxls;
+
+import com.typesafe.config.Config;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The config values read on every placement, parsed once when the config is (re)loaded. A reload swaps in a whole new
+ * instance, so a placement always sees one consistent set of values.
+ */
+public final class Settings {
+    private final long cooldownMillis;
+    private final List<String> palette;
+    private final boolean captchaEnabled;
+    private final int captchaThreshold;
+    private final String captchaKey;
+
+    public Settings(Config config) {
+        cooldownMillis = config.getDuration("cooldown", TimeUnit.MILLISECONDS);
+        palette = Collections.unmodifiableList(config.getStringList("board.palette"));
+        captchaEnabled = config.hasPath("captcha.key") && config.hasPath("captcha.secret");
+        captchaThreshold = config.getInt("captcha.threshold");
+        captchaKey = config.getString("captcha.key");
+    }
+
+    public long getCooldownMillis() {
+        return cooldownMillis;
+    }
+
+    public List<String> getPalette() {
+        return palette;
+    }
+
+    public int getPaletteSize() {
+        return palette.size();
+    }
+
+    public boolean isCaptchaEnabled() {
+        return captchaEnabled;
+    }
+
+    public int getCaptchaThreshold() {
+        return captchaThreshold;
+    }
+
+    public String getCaptchaKey() {
+        return captchaKey;
+    }
+}
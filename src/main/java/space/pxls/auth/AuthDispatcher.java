@@ -0,0 +1,159 @@
+package space.pxls.auth;
+
+import com.codahale.metrics.Counter;
+import space.pxls.util.Futures;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs OAuth logins without tying up the server's worker threads. The calls to the provider are made asynchronously
+ * under a timeout and a circuit breaker per provider, and a call still out when the timeout hits is cancelled; what
+ * comes after (looking up the user, starting a session) runs on a small pool of its own whose queue is bounded, so a
+ * wave of logins is turned away rather than piling up.
+ */
+public class AuthDispatcher {
+    private final Map<String, AuthService> services = new ConcurrentHashMap<>();
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final Counter rejected = new Counter();
+    private final Counter timedOut = new Counter();
+    private final Counter shortCircuited = new Counter();
+
+    public AuthDispatcher(int threads, int queueSize, long timeoutMillis, int failureThreshold, long openMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "pxls-auth-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public AuthDispatcher register(AuthService service) {
+        services.put(service.getId(), service);
+        breakers.put(service.getId(), new CircuitBreaker(failureThreshold, openMillis));
+        return this;
+    }
+
+    public AuthService get(String id) {
+        return services.get(id);
+    }
+
+    /**
+     * Trades the code from the provider's callback for the provider's id of the user.
+     *
+     * @return a future completing with the identifier, with null if the provider refused the code, or exceptionally
+     * if the provider could not be reached in time or has been failing
+     */
+    public CompletableFuture<String> identify(AuthService service, String code) {
+        CircuitBreaker breaker = breakers.get(service.getId());
+        if (!breaker.allow()) {
+            shortCircuited.inc();
+            CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Provider " + service.getId() + " is failing, not trying it for now"));
+            return future;
+        }
+
+        // Timing out cancels identifier, which calls off whichever of the two requests is still out
+        CompletableFuture<String> identifier = new CompletableFuture<>();
+        try {
+            CompletableFuture<String> token = service.getToken(code);
+            Futures.cancelWith(token, identifier);
+            token.whenComplete((accessToken, tokenError) -> {
+                if (tokenError != null) {
+                    identifier.completeExceptionally(tokenError);
+                } else if (accessToken == null) {
+                    identifier.complete(null);
+                } else if (!identifier.isDone()) {
+                    CompletableFuture<String> id = service.getIdentifier(accessToken);
+                    Futures.cancelWith(id, identifier);
+                    id.whenComplete((value, idError) -> {
+                        if (idError != null) {
+                            identifier.completeExceptionally(idError);
+                        } else {
+                            identifier.complete(value);
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            identifier.completeExceptionally(e);
+        }
+
+        return Futures.withTimeout(identifier, timeoutMillis).whenComplete((id, error) -> {
+            if (error == null) {
+                breaker.success();
+            } else {
+                if (error instanceof TimeoutException) timedOut.inc();
+                breaker.failure();
+            }
+        });
+    }
+
+    /**
+     * Runs the rest of a login on the auth pool.
+     *
+     * @throws RejectedExecutionException if too many logins are already waiting
+     */
+    public void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.inc();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Logins waiting for a thread of the auth pool.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Logins turned away because the queue was full.
+     */
+    public Counter getRejected() {
+        return rejected;
+    }
+
+    public Counter getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Logins failed straight away because their provider's circuit breaker was open.
+     */
+    public Counter getShortCircuited() {
+        return shortCircuited;
+    }
+
+    public boolean isOpen(String id) {
+        CircuitBreaker breaker = breakers.get(id);
+        return breaker != null && breaker.isOpen();
+    }
+}
@@ -1,7 +1,18 @@
 package space.pxls.auth;
 
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.async.Callback;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.BaseRequest;
+import org.json.JSONObject;
 import space.pxls.App;
+import space.pxls.util.Futures;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 public abstract class AuthService {
     private String id;
@@ -10,13 +21,57 @@ public abstract class AuthService {
         this.id = id;
     }
 
+    public String getId() {
+        return id;
+    }
+
     public abstract String getRedirectUrl();
 
     public String getCallbackUrl() {
         return App.getConfig().getString("oauth.callbackBase") + "/" + id;
     }
 
-    public abstract String getToken(String code) throws UnirestException;
+    /**
+     * @return a future completing with the access token for the code, or null if the provider refused it. Cancelling
+     * it should call off the request
+     */
+    public abstract CompletableFuture<String> getToken(String code);
+
+    /**
+     * @return a future completing with the provider's id for the token's owner, or null if the provider refused it.
+     * Cancelling it should call off the request
+     */
+    public abstract CompletableFuture<String> getIdentifier(String token);
 
-    public abstract String getIdentifier(String token) throws UnirestException;
+    /**
+     * Sends the request without blocking. Cancelling the returned future aborts the request.
+     *
+     * @param result picks the result out of the response body
+     * @return a future completing with the result, or exceptionally if the request failed
+     */
+    protected static <T> CompletableFuture<T> requestJson(BaseRequest request, Function<JSONObject, T> result) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Future<HttpResponse<JsonNode>> pending = request.asJsonAsync(new Callback<JsonNode>() {
+            @Override
+            public void completed(HttpResponse<JsonNode> response) {
+                try {
+                    future.complete(result.apply(response.getBody().getObject()));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(UnirestException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.completeExceptionally(new CancellationException("Request cancelled"));
+            }
+        });
+        Futures.cancelWith(pending, future);
+        return future;
+    }
 }
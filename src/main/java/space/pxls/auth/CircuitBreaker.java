@@ -0,0 +1,47 @@
+package space.pxls.auth;
+
+/**
+ * Stops calling a provider that keeps failing. After {@code failureThreshold} failures in a row calls are refused
+ * outright for {@code openMillis}; then one call at a time is let through, and the first success closes the breaker
+ * again.
+ */
+public class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int failures;
+    private long openedAt;
+    private boolean trial;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return whether a call may be made now; if so, {@link #success()} or {@link #failure()} must follow
+     */
+    public synchronized boolean allow() {
+        if (failures < failureThreshold) return true;
+        if (trial || System.currentTimeMillis() - openedAt < openMillis) return false;
+        trial = true;
+        return true;
+    }
+
+    public synchronized void success() {
+        failures = 0;
+        trial = false;
+    }
+
+    public synchronized void failure() {
+        failures++;
+        if (failures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+        }
+        trial = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return failures >= failureThreshold;
+    }
+}
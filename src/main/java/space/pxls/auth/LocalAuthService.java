@@ -0,0 +1,41 @@
+package space.pxls.auth;
+
+import space.pxls.util.Futures;
+
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fake provider for development and load tests, answering after a fixed delay instead of calling out. Signing in
+ * goes straight back to the callback with a random code; any code is accepted and the code itself is the identifier,
+ * so {@code /auth/local?code=somebody} logs in as {@code local:somebody}. Codes starting with {@code "invalid"} are
+ * refused like a real provider would refuse a bad one.
+ */
+public class LocalAuthService extends AuthService {
+    private static final String TOKEN_PREFIX = "local-token:";
+
+    private final long latencyMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    public LocalAuthService(String id, long latencyMillis) {
+        super(id);
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public String getRedirectUrl() {
+        return getCallbackUrl() + "?code=" + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<String> getToken(String code) {
+        boolean valid = !code.isEmpty() && !code.startsWith("invalid");
+        return Futures.delayed(valid ? TOKEN_PREFIX + code : null, latencyMillis);
+    }
+
+    @Override
+    public CompletableFuture<String> getIdentifier(String token) {
+        boolean valid = token.startsWith(TOKEN_PREFIX);
+        return Futures.delayed(valid ? token.substring(TOKEN_PREFIX.length()) : null, latencyMillis);
+    }
+}
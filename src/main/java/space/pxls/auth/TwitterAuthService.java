@@ -1,12 +1,10 @@
 package space.pxls.auth;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import org.json.JSONObject;
 import space.pxls.App;
 
+import java.util.concurrent.CompletableFuture;
+
 public class TwitterAuthService extends AuthService {
     public TwitterAuthService(String id) {
         super(id);
@@ -16,34 +14,20 @@ public class TwitterAuthService extends AuthService {
         return "https://api.twitter.com/oauth/authorize?oauth_token=" + App.getConfig().getString("oauth.twitter.key");
     }
 
-    public String getToken(String code) throws UnirestException {
-        HttpResponse<JsonNode> response = Unirest.post("https://www.reddit.com/api/v1/access_token")
+    public CompletableFuture<String> getToken(String code) {
+        return requestJson(Unirest.post("https://www.reddit.com/api/v1/access_token")
                 .header("User-Agent", "pxls.space")
                 .field("grant_type", "authorization_code")
                 .field("code", code)
                 .field("redirect_uri", getCallbackUrl())
-                .basicAuth(App.getConfig().getString("oauth.reddit.key"), App.getConfig().getString("oauth.reddit.secret"))
-                .asJson();
-
-        JSONObject json = response.getBody().getObject();
-
-        if (json.has("error")) {
-            return null;
-        } else {
-            return json.getString("access_token");
-        }
+                .basicAuth(App.getConfig().getString("oauth.reddit.key"), App.getConfig().getString("oauth.reddit.secret")),
+                json -> json.has("error") ? null : json.getString("access_token"));
     }
 
-    public String getIdentifier(String token) throws UnirestException {
-        HttpResponse<JsonNode> me = Unirest.get("https://oauth.reddit.com/api/v1/me")
+    public CompletableFuture<String> getIdentifier(String token) {
+        return requestJson(Unirest.get("https://oauth.reddit.com/api/v1/me")
                 .header("Authorization", "bearer " + token)
-                .header("User-Agent", "pxls.space")
-                .asJson();
-        JSONObject json = me.getBody().getObject();
-        if (json.has("error")) {
-            return null;
-        } else {
-            return json.getString("name");
-        }
+                .header("User-Agent", "pxls.space"),
+                json -> json.has("error") ? null : json.getString("name"));
     }
 }
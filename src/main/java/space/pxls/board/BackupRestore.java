@@ -0,0 +1,40 @@
+package space.pxls.board;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collections;
+
+/**
+ * Command line tool that rebuilds the board as of a point in time from the backup store:
+ *
+ * <pre>
+ * java -cp pxls.jar space.pxls.board.BackupRestore &lt;backups dir&gt; &lt;time&gt; &lt;output file&gt;
+ * </pre>
+ *
+ * {@code time} is either epoch milliseconds or an ISO-8601 instant such as {@code 2017-04-01T12:00:00Z}.
+ * The output can be dropped in as {@code board.dat} (remove {@code board.dat.meta} and {@code board.journal} too).
+ */
+public class BackupRestore {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: BackupRestore <backups dir> <time> <output file>");
+            System.exit(1);
+        }
+
+        Path dir = Paths.get(args[0]);
+        long time = args[1].matches("\\d+") ? Long.parseLong(args[1]) : Instant.parse(args[1]).toEpochMilli();
+        Path out = Paths.get(args[2]);
+
+        BackupStore store = new BackupStore(dir, Long.MAX_VALUE, Collections.emptyList());
+        byte[] board = store.restore(time);
+        if (board == null) {
+            System.err.println("No backup at or before " + Instant.ofEpochMilli(time));
+            System.exit(1);
+        }
+
+        Files.write(out, board);
+        System.out.println("Restored " + board.length + " bytes to " + out);
+    }
+}
@@ -0,0 +1,278 @@
+package space.pxls.board;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Board backups stored as gzipped full keyframes plus deltas against the latest keyframe. A delta is the board XORed
+ * with its keyframe, run-length encoded and gzipped, so restoring any point in time only needs one keyframe and one
+ * delta. {@code backups/index} lists every backup, oldest first:
+ *
+ * <pre>
+ * &lt;time millis&gt; K|D &lt;file&gt; &lt;keyframe time millis&gt;
+ * </pre>
+ */
+public class BackupStore {
+    private static final Logger logger = LogManager.getLogger(BackupStore.class);
+
+    /**
+     * Backups younger than {@code maxAge} are thinned out to the latest one per {@code every}. An {@code every} of 0
+     * keeps all of them, a {@code maxAge} of {@link Long#MAX_VALUE} makes the tier last forever.
+     */
+    public static class RetentionTier {
+        public final long maxAge;
+        public final long every;
+
+        public RetentionTier(long maxAge, long every) {
+            this.maxAge = maxAge;
+            this.every = every;
+        }
+    }
+
+    public static class Entry {
+        public final long time;
+        public final boolean keyframe;
+        public final String file;
+        public final long keyframeTime;
+
+        public Entry(long time, boolean keyframe, String file, long keyframeTime) {
+            this.time = time;
+            this.keyframe = keyframe;
+            this.file = file;
+            this.keyframeTime = keyframeTime;
+        }
+    }
+
+    private final Path dir;
+    private final long keyframeInterval;
+    private final List<RetentionTier> retention;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private Entry keyframe;
+    private byte[] keyframeData;
+
+    public BackupStore(Path dir, long keyframeInterval, List<RetentionTier> retention) throws IOException {
+        this.dir = dir;
+        this.keyframeInterval = keyframeInterval;
+        this.retention = retention;
+
+        Path index = dir.resolve("index");
+        if (Files.exists(index)) {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length < 4) continue;
+                entries.add(new Entry(Long.parseLong(parts[0]), parts[1].equals("K"), parts[2], Long.parseLong(parts[3])));
+            }
+        }
+        for (Entry entry : entries) {
+            if (entry.keyframe) keyframe = entry;
+        }
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Stores {@code board} as a backup taken at {@code time}, then applies the retention policy.
+     */
+    public synchronized void write(byte[] board, long time) throws IOException {
+        if (keyframe != null && keyframeData == null) keyframeData = readKeyframe(keyframe);
+
+        Entry entry;
+        if (keyframe == null || keyframeData.length != board.length || time - keyframe.time >= keyframeInterval) {
+            entry = new Entry(time, true, "key." + time + ".dat.gz", time);
+            writeGzipped(dir.resolve(entry.file), board);
+            keyframe = entry;
+            keyframeData = board.clone();
+        } else {
+            entry = new Entry(time, false, "delta." + time + ".bin.gz", keyframe.time);
+            writeGzipped(dir.resolve(entry.file), encodeDelta(keyframeData, board));
+        }
+        entries.add(entry);
+
+        // Only delete files once the index no longer mentions them
+        List<Entry> pruned = prune(time);
+        writeIndex();
+        for (Entry old : pruned) {
+            Files.deleteIfExists(dir.resolve(old.file));
+        }
+    }
+
+    /**
+     * Reconstructs the board as it was in the latest backup taken at or before {@code time}.
+     *
+     * @return the board data, or null if there is no backup that old
+     */
+    public synchronized byte[] restore(long time) throws IOException {
+        Entry target = null;
+        for (Entry entry : entries) {
+            if (entry.time <= time) target = entry;
+        }
+        if (target == null) return null;
+
+        Entry key = find(target.keyframeTime, true);
+        if (key == null) throw new IOException("Keyframe " + target.keyframeTime + " of backup " + target.time + " is missing");
+
+        byte[] board = readKeyframe(key);
+        if (!target.keyframe) applyDelta(board, readGzipped(dir.resolve(target.file)));
+        return board;
+    }
+
+    private List<Entry> prune(long now) {
+        Set<Long> buckets = new HashSet<>();
+        Set<Entry> kept = new HashSet<>();
+
+        // Walk newest first so the latest backup of every bucket is the one that survives
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            long age = now - entry.time;
+
+            RetentionTier tier = null;
+            int tierIndex = 0;
+            for (int t = 0; t < retention.size(); t++) {
+                if (age < retention.get(t).maxAge) {
+                    tier = retention.get(t);
+                    tierIndex = t;
+                    break;
+                }
+            }
+
+            boolean keep = entry == keyframe;
+            if (tier != null) {
+                keep |= tier.every <= 0 || buckets.add(((long) tierIndex << 48) ^ (entry.time / tier.every));
+            }
+            if (keep) kept.add(entry);
+        }
+
+        // Keyframes stay as long as a surviving delta needs them
+        Set<Long> neededKeyframes = new HashSet<>();
+        for (Entry entry : kept) neededKeyframes.add(entry.keyframeTime);
+
+        List<Entry> survivors = new ArrayList<>();
+        List<Entry> pruned = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (kept.contains(entry) || (entry.keyframe && neededKeyframes.contains(entry.time))) {
+                survivors.add(entry);
+            } else {
+                pruned.add(entry);
+            }
+        }
+
+        if (!pruned.isEmpty()) {
+            logger.log(Level.DEBUG, "Pruned " + pruned.size() + " backups");
+            entries.clear();
+            entries.addAll(survivors);
+        }
+        return pruned;
+    }
+
+    private Entry find(long time, boolean keyframe) {
+        for (Entry entry : entries) {
+            if (entry.time == time && entry.keyframe == keyframe) return entry;
+        }
+        return null;
+    }
+
+    private void writeIndex() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            sb.append(entry.time).append(' ').append(entry.keyframe ? 'K' : 'D').append(' ')
+                    .append(entry.file).append(' ').append(entry.keyframeTime).append('\n');
+        }
+        BoardSaver.writeAtomically(dir.resolve("index"), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] readKeyframe(Entry entry) throws IOException {
+        return readGzipped(dir.resolve(entry.file));
+    }
+
+    private static void writeGzipped(Path path, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+        try (OutputStream out = new GZIPOutputStream(bytes, 65536)) {
+            out.write(data);
+        }
+        BoardSaver.writeAtomically(path, bytes.toByteArray());
+    }
+
+    private static byte[] readGzipped(Path path) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path), 65536)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            int read;
+            while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Encodes {@code board ^ base} as alternating runs: [unchanged count varint][changed count varint][changed XOR bytes].
+     */
+    static byte[] encodeDelta(byte[] base, byte[] board) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < board.length) {
+            int start = i;
+            while (i < board.length && board[i] == base[i]) i++;
+            writeVarint(out, i - start);
+
+            start = i;
+            while (i < board.length && board[i] != base[i]) i++;
+            writeVarint(out, i - start);
+            for (int j = start; j < i; j++) out.write(board[j] ^ base[j]);
+        }
+        return out.toByteArray();
+    }
+
+    static void applyDelta(byte[] board, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        int i = 0;
+        try {
+            while (i < board.length) {
+                i += readVarint(in);
+                int changed = readVarint(in);
+                for (int end = i + changed; i < end; i++) board[i] ^= in.readByte();
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated backup delta", e);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
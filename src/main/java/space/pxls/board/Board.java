@@ -0,0 +1,74 @@
+package space.pxls.board;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Color indices of every pixel on the board, one byte per pixel in row-major order.
+ */
+public abstract class Board implements Closeable {
+    protected final int width;
+    protected final int height;
+    private final AtomicLong version = new AtomicLong();
+
+    protected Board(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int get(int x, int y) {
+        return getAt(x + y * width);
+    }
+
+    public void set(int x, int y, int color) {
+        setAt(x + y * width, (byte) color);
+    }
+
+    public abstract int getAt(int index);
+
+    public void setAt(int index, byte color) {
+        write(index, color);
+        version.incrementAndGet();
+    }
+
+    protected abstract void write(int index, byte color);
+
+    /**
+     * @return a counter bumped by every write, for telling whether the board changed since it was last looked at
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return a read-only view of the live board data, without copying it
+     */
+    public abstract ByteBuffer view();
+
+    /**
+     * @return a copy of the board data
+     */
+    public abstract byte[] copy();
+
+    /**
+     * Makes the board data durable in {@code board.dat}, if this board is backed by it. Heap boards have to be written
+     * out by the caller instead.
+     *
+     * @return whether the board persisted itself
+     */
+    public abstract boolean flush() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+}
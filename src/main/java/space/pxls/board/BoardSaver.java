@@ -0,0 +1,183 @@
+package space.pxls.board;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import space.pxls.util.SummingTimer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the board and takes backups on a background thread, so nothing on the placement path ever touches the disk.
+ * Saves run every {@code board.saveInterval} when the board changed, and can be requested at any time; requests that
+ * arrive while a save is still queued share it.
+ */
+public class BoardSaver {
+    private static final Logger logger = LogManager.getLogger(BoardSaver.class);
+    // Intervals used to be given in seconds, a bare number is now read as milliseconds and would save nonstop
+    private static final long MIN_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final Board board;
+    private final BoardWriter writer;
+    private final PlacementJournal journal;
+    private final Path storageDir;
+    private final BackupStore backups;
+
+    private final ScheduledExecutorService executor;
+    private CompletableFuture<Void> pendingSave;
+    private long savedVersion = -1;
+
+    private final Timer saveDuration = new SummingTimer();
+    private final Counter bytesWritten = new Counter();
+
+    public BoardSaver(Board board, BoardWriter writer, PlacementJournal journal, Path storageDir, BackupStore backups) {
+        this.board = board;
+        this.writer = writer;
+        this.journal = journal;
+        this.storageDir = storageDir;
+        this.backups = backups;
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pxls-board-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @throws IllegalArgumentException if either interval is under a second
+     */
+    public void start(long saveIntervalMillis, long backupIntervalMillis) {
+        checkInterval("board.saveInterval", saveIntervalMillis);
+        checkInterval("board.backupInterval", backupIntervalMillis);
+
+        executor.scheduleWithFixedDelay(() -> {
+            if (board.getVersion() != savedVersion) requestSave();
+        }, saveIntervalMillis, saveIntervalMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::backup, backupIntervalMillis, backupIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void checkInterval(String path, long millis) {
+        if (millis < MIN_INTERVAL) {
+            throw new IllegalArgumentException(path + " is " + millis + "ms, it must be at least 1s. Give it with a unit, e.g. 5s or 5m, a bare number is read as milliseconds");
+        }
+    }
+
+    /**
+     * Queues a save of the board, or joins the one that is already queued.
+     */
+    public synchronized CompletableFuture<Void> requestSave() {
+        if (pendingSave != null) return pendingSave;
+
+        CompletableFuture<Void> future = pendingSave = new CompletableFuture<>();
+        executor.execute(() -> {
+            synchronized (this) {
+                pendingSave = null;
+            }
+            try {
+                save();
+                future.complete(null);
+            } catch (Exception e) {
+                logger.log(Level.ERROR, "Failed to save board", e);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Copies the board on the board thread, in between two placements, and adds the copy to the backup store in the
+     * background. Called from the board thread the copy is taken right away.
+     */
+    public CompletableFuture<Void> backup() {
+        long time = System.currentTimeMillis();
+        return writer.call(board::copy).thenAcceptAsync(snapshot -> {
+            try {
+                backups.write(snapshot, time);
+            } catch (IOException e) {
+                logger.log(Level.ERROR, "Failed to back up board", e);
+            }
+        }, executor);
+    }
+
+    private void save() throws Exception {
+        // Read the last journaled sequence number before copying the board: every record up to it is then contained in
+        // the snapshot, and replaying anything newer over it is harmless
+        long version = board.getVersion();
+        long seq = writer.call(journal::getLastSeq).get();
+
+        // A mapped board only has to flush its dirty pages, a heap board is rewritten as a whole
+        long written = 0;
+        long start = System.nanoTime();
+        if (!board.flush()) {
+            written = saveMapToDir(storageDir.resolve("board.dat"), writer.call(board::copy).get());
+        }
+        writeAtomically(storageDir.resolve("board.dat.meta"), String.valueOf(seq).getBytes("UTF-8"));
+        journal.truncateUpTo(seq);
+        savedVersion = version;
+        long elapsed = System.nanoTime() - start;
+
+        saveDuration.update(elapsed, TimeUnit.NANOSECONDS);
+        logger.log(Level.DEBUG, "Saved board up to placement " + seq + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, " + written + " bytes written");
+    }
+
+    private long saveMapToDir(Path path, byte[] data) throws IOException {
+        writeAtomically(path, data);
+        bytesWritten.inc(data.length);
+        return data.length;
+    }
+
+    /**
+     * Stops the scheduled saves and writes a final backup and save, blocking until they are on disk.
+     */
+    public void shutdown() {
+        try {
+            backup();
+            requestSave().get();
+        } catch (Exception e) {
+            logger.log(Level.ERROR, "Failed to save board on shutdown", e);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Time taken by each board save, from the flush or full write up to the journal being truncated.
+     */
+    public Timer getSaveDuration() {
+        return saveDuration;
+    }
+
+    /**
+     * Bytes written by full board writes. Mapped board flushes and backups are not counted.
+     */
+    public Counter getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes to a temporary file next to {@code path} and renames it into place, so readers (and crashes) only ever
+     * see the old or the new content.
+     */
+    public static void writeAtomically(Path path, byte[] data) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) channel.write(buf);
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,130 @@
+package space.pxls.board;
+
+import com.codahale.metrics.Counter;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import space.pxls.util.MpscRingBuffer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The only thread allowed to mutate the board. Placements and admin operations are queued as tasks from any thread
+ * and run one after the other, so validation, the board write, the journal sequence number, the database write and the
+ * broadcast all happen in one well-defined order. Reads that need a consistent view of the board (copies, the journal
+ * position belonging to them) are queued the same way.
+ *
+ * Submitting never blocks: when the queue is full the task is rejected and the caller decides what to tell the client.
+ */
+public class BoardWriter {
+    private static final Logger logger = LogManager.getLogger(BoardWriter.class);
+
+    private final MpscRingBuffer<Runnable> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+
+    private final Counter rejected = new Counter();
+
+    public BoardWriter(int capacity) {
+        queue = new MpscRingBuffer<>(capacity);
+        thread = new Thread(this::run, "pxls-board-writer");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a task to run on the board thread.
+     *
+     * @return false if the queue is full or the writer is shut down
+     */
+    public boolean submit(Runnable task) {
+        if (!running || !queue.offer(task)) {
+            rejected.inc();
+            return false;
+        }
+        if (sleeping) LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Runs {@code task} on the board thread and hands back its result. Called from the board thread itself, or once
+     * the writer has stopped, the task runs right away instead.
+     */
+    public <T> CompletableFuture<T> call(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable runnable = () -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        };
+
+        if (Thread.currentThread() == thread || !thread.isAlive()) {
+            runnable.run();
+        } else if (!submit(runnable)) {
+            future.completeExceptionally(new RejectedExecutionException("Board queue is full"));
+        }
+        return future;
+    }
+
+    public boolean isWriterThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void run() {
+        while (running || !queue.isEmpty()) {
+            Runnable task = queue.poll();
+            if (task == null) {
+                idle();
+                continue;
+            }
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.log(Level.ERROR, "Board task failed", e);
+            }
+        }
+    }
+
+    private void idle() {
+        // Producers check the flag after publishing, and we check the queue after raising it, so one of us always
+        // notices the other; the timeout is only a safety net
+        sleeping = true;
+        if (queue.isEmpty() && running) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+        sleeping = false;
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued ones to finish.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Tasks turned away because the queue was full or the writer shut down.
+     */
+    public Counter getRejected() {
+        return rejected;
+    }
+}
@@ -0,0 +1,42 @@
+package space.pxls.board;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Board kept in a plain heap array, loaded and saved as a whole.
+ */
+public class HeapBoard extends Board {
+    private final byte[] data;
+
+    public HeapBoard(int width, int height, byte[] saved) {
+        super(width, height);
+        data = new byte[width * height];
+        // TODO: Save should contain current board size for adequate relocation of data.
+        if (saved != null) System.arraycopy(saved, 0, data, 0, Math.min(saved.length, data.length));
+    }
+
+    @Override
+    public int getAt(int index) {
+        return data[index] & 0xFF;
+    }
+
+    @Override
+    protected void write(int index, byte color) {
+        data[index] = color;
+    }
+
+    @Override
+    public ByteBuffer view() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] copy() {
+        return data.clone();
+    }
+
+    @Override
+    public boolean flush() {
+        return false;
+    }
+}
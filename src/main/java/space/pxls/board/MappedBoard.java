@@ -0,0 +1,58 @@
+package space.pxls.board;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Board memory-mapped over {@code board.dat}. Writes land in the page cache straight away, saving is just a
+ * {@link MappedByteBuffer#force()} and nothing has to be read eagerly on startup.
+ */
+public class MappedBoard extends Board {
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+
+    public MappedBoard(int width, int height, Path path) throws IOException {
+        super(width, height);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping past the end grows the file, new pixels read as color 0
+        data = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) width * height);
+    }
+
+    @Override
+    public int getAt(int index) {
+        return data.get(index) & 0xFF;
+    }
+
+    @Override
+    protected void write(int index, byte color) {
+        data.put(index, color);
+    }
+
+    @Override
+    public ByteBuffer view() {
+        return data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] copy() {
+        byte[] copy = new byte[width * height];
+        data.duplicate().get(copy);
+        return copy;
+    }
+
+    @Override
+    public boolean flush() {
+        data.force();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,77 @@
+package space.pxls.board;
+
+/**
+ * Ring buffer of the most recent board writes, indexed by their journal sequence number, so a reconnecting client can
+ * be sent only what it missed instead of the whole board.
+ */
+public class PlacementHistory {
+    @FunctionalInterface
+    public interface PixelHandler {
+        void handle(long seq, int x, int y, int color);
+    }
+
+    private final int capacity;
+    private final long[] seqs;
+    private final int[] xs;
+    private final int[] ys;
+    private final byte[] colors;
+
+    private long oldest;
+    private long latest;
+
+    /**
+     * @param latestSeq the last sequence number written before this run; nothing up to it can be replayed
+     */
+    public PlacementHistory(int capacity, long latestSeq) {
+        this.capacity = capacity;
+        seqs = new long[capacity];
+        xs = new int[capacity];
+        ys = new int[capacity];
+        colors = new byte[capacity];
+        oldest = latestSeq + 1;
+        latest = latestSeq;
+    }
+
+    public synchronized void record(long seq, int x, int y, int color) {
+        // Slots are addressed by sequence, so records may arrive slightly out of order
+        int slot = (int) (seq % capacity);
+        seqs[slot] = seq;
+        xs[slot] = x;
+        ys[slot] = y;
+        colors[slot] = (byte) color;
+
+        if (seq > latest) latest = seq;
+        oldest = Math.max(oldest, latest - capacity + 1);
+    }
+
+    /**
+     * Forgets every write up to and including {@code seq}, for writes that are not recorded one by one. Callers
+     * behind {@code seq} need a full snapshot from then on.
+     */
+    public synchronized void reset(long seq) {
+        if (seq < latest) return;
+        latest = seq;
+        oldest = seq + 1;
+    }
+
+    /**
+     * Hands every recorded write after {@code since} to {@code handler}, oldest first.
+     *
+     * @return the sequence number the caller is now up to date with, or -1 if {@code since} is no longer (or was
+     * never) in the buffer and the caller needs a full snapshot instead
+     */
+    public synchronized long since(long since, PixelHandler handler) {
+        if (since == latest) return latest;
+        if (since > latest || since + 1 < oldest) return -1;
+
+        for (long seq = since + 1; seq <= latest; seq++) {
+            int slot = (int) (seq % capacity);
+            if (seqs[slot] == seq) handler.handle(seq, xs[slot], ys[slot], colors[slot] & 0xFF);
+        }
+        return latest;
+    }
+
+    public synchronized long getLatest() {
+        return latest;
+    }
+}
@@ -0,0 +1,167 @@
+package space.pxls.board;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every board write. Records are written to the file as they happen and fsynced in groups
+ * every {@code syncInterval}, so a crash loses at most that much. Board snapshots remember the sequence number
+ * they include, and startup replays whatever the journal holds past it.
+ *
+ * <pre>
+ * record: [seq i64][x i32][y i32][color u8][who i32][time i64][crc32 of the previous fields i32]
+ * </pre>
+ */
+public class PlacementJournal implements Closeable {
+    public static final int RECORD_SIZE = 8 + 4 + 4 + 1 + 4 + 8 + 4;
+
+    @FunctionalInterface
+    public interface RecordHandler {
+        void handle(long seq, int x, int y, int color, int who, long time);
+    }
+
+    private final Path path;
+    private FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private long lastSeq;
+    private boolean dirty;
+    private ScheduledExecutorService syncer;
+
+    public PlacementJournal(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Replays all intact records with a sequence number above {@code afterSeq}, then cuts off any torn tail left by a
+     * crash and positions the journal for appending. Saves truncate the journal, so it only ever holds what came after
+     * the last snapshot and is read from the start.
+     *
+     * @return the number of records replayed
+     */
+    public synchronized int recover(long afterSeq, RecordHandler handler) throws IOException {
+        long size = channel.size();
+        lastSeq = afterSeq;
+        int replayed = 0;
+        long pos = 0;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        while (pos + RECORD_SIZE <= size) {
+            record.clear();
+            channel.read(record, pos);
+            record.flip();
+            if (!isValid(record)) break;
+
+            long seq = record.getLong();
+            if (seq > afterSeq) {
+                handler.handle(seq, record.getInt(), record.getInt(), record.get() & 0xFF, record.getInt(), record.getLong());
+                replayed++;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            pos += RECORD_SIZE;
+        }
+
+        if (pos < size) channel.truncate(pos);
+        channel.position(pos);
+        return replayed;
+    }
+
+    public void startSync(long intervalMillis) {
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pxls-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the sequence number assigned to the record
+     */
+    public synchronized long append(int x, int y, int color, int who, long time) throws IOException {
+        long seq = lastSeq + 1;
+
+        buf.clear();
+        buf.putLong(seq).putInt(x).putInt(y).put((byte) color).putInt(who).putLong(time);
+        crc.reset();
+        crc.update(buf.array(), 0, RECORD_SIZE - 4);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+
+        lastSeq = seq;
+        dirty = true;
+        return seq;
+    }
+
+    public synchronized void sync() {
+        if (!dirty) return;
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Drops every record up to and including {@code seq}, which a durable snapshot now covers. The records after it
+     * are copied into a fresh file that atomically replaces the journal.
+     */
+    public synchronized void truncateUpTo(long seq) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            long pos = channel.position() - RECORD_SIZE;
+            // Records are in sequence order, so walk back to the first one we have to keep
+            while (pos >= 0) {
+                record.clear();
+                channel.read(record, pos);
+                if (record.getLong(0) <= seq) break;
+                pos -= RECORD_SIZE;
+            }
+            long from = pos + RECORD_SIZE;
+            long end = channel.position();
+            while (from < end) {
+                from += channel.transferTo(from, end - from, out);
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        dirty = false;
+    }
+
+    private boolean isValid(ByteBuffer record) {
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        return record.getInt(RECORD_SIZE - 4) == (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) syncer.shutdown();
+        if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package space.pxls.board;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders the board as an indexed PNG, optionally downscaled by an integer factor. The image data is split into
+ * horizontal bands, one per row of tiles, each deflated on its own; after the first render only the bands whose tiles
+ * changed get compressed again, in parallel, and the zlib stream is stitched back together from the cached pieces.
+ */
+public class PngRenderer {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * A rendered image with the ETag derived from its content.
+     */
+    public static class Image {
+        public final byte[] png;
+        public final String etag;
+
+        Image(byte[] png, String etag) {
+            this.png = png;
+            this.etag = etag;
+        }
+    }
+
+    private final Board board;
+    private final TileIndex tiles;
+    private final int scale;
+    private final int width;
+    private final int height;
+    private final int bands;
+    private final long minIntervalMillis;
+
+    private final long[] bandVersions;
+    private final byte[][] bandData;
+    private final int[] bandAdler;
+    private final int[] bandLength;
+
+    private List<String> palette;
+    private long renderedVersion = -1;
+    private long renderedAt;
+    private Image image;
+
+    /**
+     * @param minIntervalMillis how long a render is served as is, even if the board changed in the meantime
+     */
+    public PngRenderer(Board board, TileIndex tiles, int scale, long minIntervalMillis) {
+        this.board = board;
+        this.tiles = tiles;
+        this.scale = scale;
+        this.minIntervalMillis = minIntervalMillis;
+        this.width = (board.getWidth() + scale - 1) / scale;
+        this.height = (board.getHeight() + scale - 1) / scale;
+        this.bands = tiles.getRows();
+
+        bandVersions = new long[bands];
+        bandData = new byte[bands][];
+        bandAdler = new int[bands];
+        bandLength = new int[bands];
+    }
+
+    /**
+     * @return the encoded PNG and its ETag, re-rendered first if the board or palette changed since the last call
+     */
+    public synchronized Image render(List<String> palette) {
+        long version = board.getVersion();
+        if (image != null && palette.equals(this.palette)) {
+            if (version == renderedVersion || System.currentTimeMillis() - renderedAt < minIntervalMillis) return image;
+        }
+
+        boolean all = !palette.equals(this.palette);
+        long[] versions = tiles.getVersions();
+        List<Integer> dirty = new ArrayList<>();
+        for (int band = 0; band < bands; band++) {
+            // Tile versions only ever grow, so the sum of a row changes exactly when one of its tiles does
+            long bandVersion = 0;
+            for (int tx = 0; tx < tiles.getColumns(); tx++) bandVersion += versions[tx + band * tiles.getColumns()];
+
+            if (all || bandData[band] == null || bandVersions[band] != bandVersion) {
+                bandVersions[band] = bandVersion;
+                dirty.add(band);
+            }
+        }
+
+        dirty.parallelStream().forEach(this::encodeBand);
+
+        this.palette = new ArrayList<>(palette);
+        this.renderedVersion = version;
+        this.renderedAt = System.currentTimeMillis();
+        byte[] png = assemble();
+
+        CRC32 crc = new CRC32();
+        crc.update(png);
+        this.image = new Image(png, "\"" + Long.toHexString(crc.getValue()) + "-" + scale + "\"");
+        return image;
+    }
+
+    private void encodeBand(int band) {
+        // Output rows whose source row falls inside this band of tile rows
+        int bandHeight = tiles.getTileSize();
+        int first = (band * bandHeight + scale - 1) / scale;
+        int last = Math.min(height, ((band + 1) * bandHeight + scale - 1) / scale);
+
+        int stride = width + 1;
+        byte[] raw = new byte[Math.max(0, last - first) * stride];
+        ByteBuffer view = board.view();
+        for (int y = first; y < last; y++) {
+            int offset = (y - first) * stride;
+            raw[offset] = 0; // Filter type none
+            int src = y * scale * board.getWidth();
+            if (scale == 1) {
+                view.position(src);
+                view.get(raw, offset + 1, width);
+            } else {
+                for (int x = 0; x < width; x++) raw[offset + 1 + x] = view.get(src + x * scale);
+            }
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+
+        // Every band but the last ends on a sync flush, so the pieces concatenate into one valid deflate stream
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buf = new byte[65536];
+        if (band == bands - 1) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } else {
+            int len;
+            do {
+                len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, len);
+            } while (len == buf.length);
+        }
+        deflater.end();
+
+        bandData[band] = out.toByteArray();
+        bandAdler[band] = (int) adler.getValue();
+        bandLength[band] = raw.length;
+    }
+
+    private byte[] assemble() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(SIGNATURE, 0, SIGNATURE.length);
+
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width).putInt(height).put((byte) 8).put((byte) 3).put((byte) 0).put((byte) 0).put((byte) 0);
+        chunk(out, "IHDR", ihdr.array());
+
+        byte[] plte = new byte[palette.size() * 3];
+        for (int i = 0; i < palette.size(); i++) {
+            int rgb = Integer.parseInt(palette.get(i).substring(1), 16);
+            plte[i * 3] = (byte) (rgb >> 16);
+            plte[i * 3 + 1] = (byte) (rgb >> 8);
+            plte[i * 3 + 2] = (byte) rgb;
+        }
+        chunk(out, "PLTE", plte);
+
+        int size = 2 + 4;
+        for (byte[] data : bandData) size += data.length;
+        ByteBuffer idat = ByteBuffer.allocate(size);
+        idat.put((byte) 0x78).put((byte) 0x9C);
+        long adler = 1;
+        for (int band = 0; band < bands; band++) {
+            idat.put(bandData[band]);
+            adler = combineAdler(adler, bandAdler[band] & 0xFFFFFFFFL, bandLength[band]);
+        }
+        idat.putInt((int) adler);
+        chunk(out, "IDAT", idat.array());
+
+        chunk(out, "IEND", new byte[0]);
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(data.length).put(typeBytes);
+        out.write(header.array(), 0, 8);
+        out.write(data, 0, data.length);
+        ByteBuffer footer = ByteBuffer.allocate(4);
+        footer.putInt((int) crc.getValue());
+        out.write(footer.array(), 0, 4);
+    }
+
+    /**
+     * Adler-32 of two concatenated blocks from the checksums of each, as zlib's adler32_combine.
+     */
+    static long combineAdler(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    public int getScale() {
+        return scale;
+    }
+}
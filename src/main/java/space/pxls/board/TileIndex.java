@@ -0,0 +1,60 @@
+package space.pxls.board;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Splits the board into square tiles and keeps a version counter per tile, bumped whenever a pixel in it changes.
+ * Counters restart from zero with every run, so anything cached by version must also key on {@link #getEpoch()}.
+ */
+public class TileIndex {
+    private final int tileSize;
+    private final int columns;
+    private final int rows;
+    private final AtomicLongArray versions;
+    private final long epoch = System.currentTimeMillis();
+
+    public TileIndex(int width, int height, int tileSize) {
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.versions = new AtomicLongArray(columns * rows);
+    }
+
+    public void touch(int x, int y) {
+        versions.incrementAndGet(x / tileSize + (y / tileSize) * columns);
+    }
+
+    public void touchRegion(int x1, int y1, int x2, int y2) {
+        for (int ty = y1 / tileSize; ty <= y2 / tileSize; ty++) {
+            for (int tx = x1 / tileSize; tx <= x2 / tileSize; tx++) {
+                versions.incrementAndGet(tx + ty * columns);
+            }
+        }
+    }
+
+    public long getVersion(int tx, int ty) {
+        return versions.get(tx + ty * columns);
+    }
+
+    public long[] getVersions() {
+        long[] copy = new long[versions.length()];
+        for (int i = 0; i < copy.length; i++) copy[i] = versions.get(i);
+        return copy;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+}
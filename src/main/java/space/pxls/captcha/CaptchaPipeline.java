@@ -0,0 +1,174 @@
+package space.pxls.captcha;
+
+import com.codahale.metrics.Counter;
+import space.pxls.util.Futures;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Puts a {@link CaptchaVerifier} behind a few guards so a surge of captcha solves can't pile up unbounded requests:
+ * at most {@code maxConcurrent} verifications run at once with up to {@code maxQueued} more waiting, each one is
+ * failed and cancelled after {@code timeoutMillis}, and a user submitting a token again while it is being checked
+ * shares that check. A verification keeps its slot until the verifier's own future completes, so a slow provider
+ * can't have more than {@code maxConcurrent} requests out.
+ * Tokens are single use, so only rejections are remembered (for {@code cacheTtlMillis}, per user): a token that passed
+ * is never accepted again without asking the verifier, and never for another user. Every returned future completes,
+ * with false or exceptionally if the token could not be checked.
+ */
+public class CaptchaPipeline {
+    private final CaptchaVerifier verifier;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long timeoutMillis;
+    private final long cacheTtlMillis;
+
+    private final Map<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    // Starts queued verifications as slots free up, so finishing one never runs the next on the finishing thread
+    private final ExecutorService starter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pxls-captcha");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int running;
+    // Rejected tokens by user, with the time they were rejected
+    private final LinkedHashMap<String, Long> results;
+
+    private final Counter rejected = new Counter();
+    private final Counter timedOut = new Counter();
+    private final Counter deduplicated = new Counter();
+    private final Counter cacheHits = new Counter();
+
+    public CaptchaPipeline(CaptchaVerifier verifier, int maxConcurrent, int maxQueued, long timeoutMillis, long cacheTtlMillis, int cacheSize) {
+        this.verifier = verifier;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.timeoutMillis = timeoutMillis;
+        this.cacheTtlMillis = cacheTtlMillis;
+
+        results = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @param userId the user who sent the token, the result only counts for them
+     */
+    public CompletableFuture<Boolean> verify(int userId, String token) {
+        if (token == null || token.isEmpty()) return CompletableFuture.completedFuture(false);
+        String key = userId + ":" + token;
+
+        synchronized (results) {
+            Long rejectedAt = results.get(key);
+            if (rejectedAt != null) {
+                if (System.currentTimeMillis() - rejectedAt < cacheTtlMillis) {
+                    cacheHits.inc();
+                    return CompletableFuture.completedFuture(false);
+                }
+                results.remove(key);
+            }
+        }
+
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            deduplicated.inc();
+            return existing;
+        }
+
+        future.whenComplete((valid, error) -> {
+            inFlight.remove(key, future);
+            if (error == null && !valid) {
+                synchronized (results) {
+                    results.put(key, System.currentTimeMillis());
+                }
+            }
+        });
+
+        Runnable task = () -> {
+            CompletableFuture<Boolean> verification;
+            try {
+                verification = verifier.verify(token);
+            } catch (Exception e) {
+                finished();
+                future.completeExceptionally(e);
+                return;
+            }
+            // A timeout cancels the verification, which only then gives up its slot
+            verification.whenComplete((valid, error) -> finished());
+            Futures.withTimeout(verification, timeoutMillis).whenComplete((valid, error) -> {
+                if (error != null) {
+                    if (error instanceof TimeoutException) timedOut.inc();
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(valid);
+                }
+            });
+        };
+
+        synchronized (queued) {
+            if (running < maxConcurrent) {
+                running++;
+            } else if (queued.size() < maxQueued) {
+                queued.add(task);
+                return future;
+            } else {
+                rejected.inc();
+                future.completeExceptionally(new RejectedExecutionException("Too many captcha verifications pending"));
+                return future;
+            }
+        }
+        task.run();
+        return future;
+    }
+
+    private void finished() {
+        Runnable next;
+        synchronized (queued) {
+            next = queued.poll();
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        // The finished verification's slot passes straight on to the next one
+        starter.execute(next);
+    }
+
+    /**
+     * Verifications turned away because too many were already running or waiting.
+     */
+    public Counter getRejected() {
+        return rejected;
+    }
+
+    public Counter getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Tokens submitted again by the same user while they were still being verified.
+     */
+    public Counter getDeduplicated() {
+        return deduplicated;
+    }
+
+    /**
+     * Tokens turned down from memory, having been rejected for the same user before.
+     */
+    public Counter getCacheHits() {
+        return cacheHits;
+    }
+}
@@ -0,0 +1,14 @@
+package space.pxls.captcha;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks a captcha token handed in by a client.
+ */
+public interface CaptchaVerifier {
+    /**
+     * @return a future completing with whether the token is valid, or exceptionally if it could not be checked.
+     * Cancelling it should call off the check
+     */
+    CompletableFuture<Boolean> verify(String token);
+}
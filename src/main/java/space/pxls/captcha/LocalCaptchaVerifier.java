@@ -0,0 +1,33 @@
+package space.pxls.captcha;
+
+import space.pxls.util.Futures;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a real captcha service, for development and offline load tests. Every non-empty token passes except
+ * those starting with {@code "invalid"}, after a fixed delay imitating the round trip to the real service.
+ */
+public class LocalCaptchaVerifier implements CaptchaVerifier {
+    private final long latencyMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pxls-local-captcha");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalCaptchaVerifier(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verify(String token) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        boolean valid = token != null && !token.isEmpty() && !token.startsWith("invalid");
+        Futures.cancelWith(executor.schedule(() -> future.complete(valid), latencyMillis, TimeUnit.MILLISECONDS), future);
+        return future;
+    }
+}
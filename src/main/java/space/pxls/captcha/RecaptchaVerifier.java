@@ -0,0 +1,56 @@
+package space.pxls.captcha;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import org.json.JSONObject;
+import space.pxls.util.Futures;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies tokens against Google's reCAPTCHA API, accepting only those solved on our own hostname.
+ */
+public class RecaptchaVerifier implements CaptchaVerifier {
+    private final String secret;
+    private final String hostname;
+
+    public RecaptchaVerifier(String secret, String hostname) {
+        this.secret = secret;
+        this.hostname = hostname;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verify(String token) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        Future<HttpResponse<JsonNode>> request = Unirest
+                .post("https://www.google.com/recaptcha/api/siteverify")
+                .field("secret", secret)
+                .field("response", token)
+                .field("remoteip", "null")
+                .asJsonAsync(new Callback<JsonNode>() {
+                    @Override
+                    public void completed(HttpResponse<JsonNode> response) {
+                        JSONObject body = response.getBody().getObject();
+                        future.complete(body.optBoolean("success") && hostname.equals(body.optString("hostname")));
+                    }
+
+                    @Override
+                    public void failed(UnirestException e) {
+                        future.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        future.completeExceptionally(new CancellationException("Captcha verification cancelled"));
+                    }
+                });
+        // Cancelling the verification (on a timeout) aborts the request
+        Futures.cancelWith(request, future);
+        return future;
+    }
+}
@@ -1,14 +1,19 @@
 package space.pxls.data;
 
 import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.BindBean;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.BatchChunkSize;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
 
 import java.io.Closeable;
+import java.sql.Timestamp;
+import java.util.List;
 import java.util.Map;
 
-@RegisterMapper({DBUser.Mapper.class, PixelPlacement.Mapper.class})
+@RegisterMapper({DBUser.Mapper.class, PixelPlacement.Mapper.class, DBSession.Mapper.class})
 public interface DAO extends Closeable {
     @SqlUpdate("CREATE TABLE IF NOT EXISTS pixels (" +
             "id INT UNSIGNED NOT NULL PRIMARY KEY AUTO_INCREMENT," +
@@ -22,6 +27,13 @@ public interface DAO extends Closeable {
     @SqlUpdate("INSERT INTO pixels (x, y, color, who) VALUES (:x, :y, :color, :who)")
     void putPixel(@Bind("x") int x, @Bind("y") int y, @Bind("color") byte color, @Bind("who") int who);
 
+    @SqlBatch("INSERT INTO pixels (x, y, color, who, time) VALUES (:x, :y, :color, :who, :time)")
+    void putPixels(@BindBean Iterable<PixelWriter.Placement> placements);
+
+    @SqlBatch("INSERT INTO pixels (x, y, color, who, time) VALUES (:x, :y, :color, :who, :time)")
+    @BatchChunkSize(5000)
+    void putRegion(@BindBean Iterable<PixelWriter.Placement> placements);
+
     @SqlQuery("SELECT * FROM pixels WHERE x = :x AND y = :y ORDER BY time DESC LIMIT 1")
     PixelPlacement getPixel(@Bind("x") int x, @Bind("y") int y);
 
@@ -36,6 +48,9 @@ public interface DAO extends Closeable {
 
     @SqlUpdate("UPDATE users SET last_pixel_time = now(6) WHERE id = :id")
     void updateUserTime(@Bind("id") int userId);
+
+    @SqlBatch("UPDATE users SET last_pixel_time = :time WHERE id = :id")
+    void updateUserTimes(@Bind("id") List<Integer> userIds, @Bind("time") List<Timestamp> times);
     
     @SqlUpdate("UPDATE users SET role = :role WHERE id = :id")
     void updateUserRole(@Bind("id") int userId, @Bind("role") String role);
@@ -52,6 +67,28 @@ public interface DAO extends Closeable {
     @SqlQuery("SELECT * FROM users WHERE username = :name")
     DBUser getUserByName(@Bind("name") String name);
 
+    @SqlQuery("SELECT * FROM users WHERE id = :id")
+    DBUser getUserById(@Bind("id") int id);
+
+    @SqlUpdate("CREATE TABLE IF NOT EXISTS sessions (" +
+            "token VARCHAR(64) NOT NULL PRIMARY KEY," +
+            "who INT UNSIGNED NOT NULL," +
+            "created TIMESTAMP NOT NULL DEFAULT now(6)," +
+            "last_used TIMESTAMP NOT NULL DEFAULT now(6))")
+    void createSessionsTable();
+
+    @SqlUpdate("INSERT INTO sessions (token, who, created, last_used) VALUES (:token, :who, :time, :time)")
+    void createSession(@Bind("token") String token, @Bind("who") int who, @Bind("time") Timestamp time);
+
+    @SqlQuery("SELECT * FROM sessions WHERE token = :token")
+    DBSession getSession(@Bind("token") String token);
+
+    @SqlBatch("UPDATE sessions SET last_used = :time WHERE token = :token")
+    void touchSessions(@Bind("token") List<String> tokens, @Bind("time") List<Timestamp> times);
+
+    @SqlUpdate("DELETE FROM sessions WHERE created < :createdBefore OR last_used < :usedBefore")
+    int deleteExpiredSessions(@Bind("createdBefore") Timestamp createdBefore, @Bind("usedBefore") Timestamp usedBefore);
+
     @SqlUpdate("INSERT OR REPLACE INTO ips (id, USER, ip, last_activity) VALUES ((SELECT id FROM ips WHERE USER = :USER AND ip = :ip), :USER, :ip, now(6))")
     void updateIPActivity(int user, String ip);
 
@@ -0,0 +1,28 @@
+package space.pxls.data;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class DBSession {
+    public String token;
+    public int who;
+    public long created;
+    public long lastUsed;
+
+    public DBSession(String token, int who, long created, long lastUsed) {
+        this.token = token;
+        this.who = who;
+        this.created = created;
+        this.lastUsed = lastUsed;
+    }
+
+    public static class Mapper implements ResultSetMapper<DBSession> {
+        @Override
+        public DBSession map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+            return new DBSession(r.getString("token"), r.getInt("who"), r.getTimestamp("created").getTime(), r.getTimestamp("last_used").getTime());
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 
 public class DBUser {
     public int id;
@@ -26,7 +27,9 @@ public class DBUser {
     public static class Mapper implements ResultSetMapper<DBUser> {
         @Override
         public DBUser map(int index, ResultSet r, StatementContext ctx) throws SQLException {
-            return new DBUser(r.getInt("id"), r.getString("username"), r.getString("login"), 0, r.getString("role"));
+            Timestamp lastPixelTime = r.getTimestamp("last_pixel_time");
+            return new DBUser(r.getInt("id"), r.getString("username"), r.getString("login"),
+                    lastPixelTime == null ? 0 : lastPixelTime.getTime(), r.getString("role"));
         }
     }
 }
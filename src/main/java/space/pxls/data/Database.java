@@ -1,45 +1,96 @@
 package space.pxls.data;
 
+import com.typesafe.config.Config;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.Level;
 import org.skife.jdbi.v2.DBI;
 import space.pxls.App;
+import space.pxls.util.TimedProxy;
 import space.pxls.user.User;
 
 import java.io.Closeable;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Database implements Closeable {
     private final DBI dbi;
     private final DAO handle;
+    private final PixelWriter pixelWriter;
+
+    private HikariDataSource dataSource;
 
     public Database() {
+        Config config = App.getConfig();
         try {
-            Class.forName("org.mariadb.jdbc.Driver");
+            Class.forName(config.getString("database.driver"));
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
 
-        dbi = new DBI(App.getConfig().getString("database.url"), App.getConfig().getString("database.user"), App.getConfig().getString("database.pass"));
-        handle = dbi.open(DAO.class);
+        DAO dao;
+        if (config.getBoolean("database.pool.enabled")) {
+            HikariConfig hikari = new HikariConfig();
+            hikari.setPoolName("pxls");
+            hikari.setDriverClassName(config.getString("database.driver"));
+            hikari.setJdbcUrl(config.getString("database.url"));
+            hikari.setUsername(config.getString("database.user"));
+            hikari.setPassword(config.getString("database.pass"));
+            hikari.setMaximumPoolSize(config.getInt("database.pool.maxSize"));
+            hikari.setMinimumIdle(config.getInt("database.pool.minIdle"));
+            hikari.setConnectionTimeout(config.getDuration("database.pool.connectionTimeout", TimeUnit.MILLISECONDS));
+            hikari.setIdleTimeout(config.getDuration("database.pool.idleTimeout", TimeUnit.MILLISECONDS));
+            hikari.setMaxLifetime(config.getDuration("database.pool.maxLifetime", TimeUnit.MILLISECONDS));
+            hikari.setLeakDetectionThreshold(config.getDuration("database.pool.leakDetectionThreshold", TimeUnit.MILLISECONDS));
+            hikari.setMetricRegistry(App.getMetrics());
+            dataSource = new HikariDataSource(hikari);
+
+            // Every DAO call borrows a pooled connection for just that statement
+            dbi = new DBI(dataSource);
+            dao = dbi.onDemand(DAO.class);
+        } else {
+            // Legacy mode: a single connection shared by every caller
+            dbi = new DBI(config.getString("database.url"), config.getString("database.user"), config.getString("database.pass"));
+            dao = dbi.open(DAO.class);
+        }
+        // Every query is timed as pxls.db.<method>, pool metrics are reported as pxls.pool.*
+        handle = TimedProxy.wrap(DAO.class, dao, App.getMetrics(), "pxls.db");
 
         handle.createPixelsTable();
         handle.createUsersTable();
+        handle.createSessionsTable();
+
+        pixelWriter = new PixelWriter(handle,
+                App.getConfig().getInt("database.writer.queueSize"),
+                App.getConfig().getInt("database.writer.flushSize"),
+                App.getConfig().getDuration("database.writer.flushInterval", TimeUnit.MILLISECONDS),
+                App.getConfig().getEnum(PixelWriter.Backpressure.class, "database.writer.backpressure"),
+                App.getConfig().getDuration("database.writer.blockTimeout", TimeUnit.MILLISECONDS));
     }
     
     public DAO getHandle() {
         return handle;
     }
 
-    public void blankStep(int who, int x, int y, byte color) {
-        handle.putPixel(x, y, color, who);
-    }
-    
-    public void blankFinish(int who)
-    {
-        handle.updateUserTime(who);
+    /**
+     * Writes the pixels changed by a region operation in one batched transaction, bypassing the placement queue.
+     */
+    public void placeRegion(Iterable<PixelWriter.Placement> placements, int who) {
+        try {
+            handle.putRegion(placements);
+            handle.updateUserTime(who);
+        } catch (Exception e) {
+            App.pixelLogger.log(Level.ERROR, "Failed to write region operation by " + who, e);
+        }
     }
 
     public void placePixel(int x, int y, int color, User who) {
-        handle.putPixel(x, y, (byte) color, who.getId());
-        handle.updateUserTime(who.getId());
+        pixelWriter.enqueue(x, y, color, who.getId());
+    }
+
+    public PixelWriter getPixelWriter() {
+        return pixelWriter;
     }
 
     public void getPixelAt(int x, int y) {
@@ -47,7 +98,12 @@ public class Database implements Closeable {
     }
 
     public void close() {
-        handle.close();
+        pixelWriter.close();
+        if (dataSource != null) {
+            dataSource.close();
+        } else {
+            handle.close();
+        }
     }
 
     public DBUser getUserByLogin(String login) {
@@ -61,6 +117,26 @@ public class Database implements Closeable {
         return user;
     }
 
+    public DBUser getUserById(int id) {
+        return handle.getUserById(id);
+    }
+
+    public void createSession(String token, int who, long time) {
+        handle.createSession(token, who, new Timestamp(time));
+    }
+
+    public DBSession getSession(String token) {
+        return handle.getSession(token);
+    }
+
+    public void touchSessions(List<String> tokens, List<Timestamp> times) {
+        handle.touchSessions(tokens, times);
+    }
+
+    public int deleteExpiredSessions(long createdBefore, long usedBefore) {
+        return handle.deleteExpiredSessions(new Timestamp(createdBefore), new Timestamp(usedBefore));
+    }
+
     public DBUser createUser(String name, String login) {
         handle.createUser(name, login);
         DBUser user = getUserByName(name);
@@ -0,0 +1,199 @@
+package space.pxls.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import org.apache.logging.log4j.Level;
+import space.pxls.App;
+import space.pxls.board.BoardWriter;
+import space.pxls.util.SummingTimer;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for pixel placements. Callers only enqueue, a dedicated thread drains the queue and writes
+ * the placements as JDBC batches, collapsing the {@code last_pixel_time} update to one row per user per flush.
+ * Placements enqueued from the board thread are always dropped when the queue is full, whatever the policy, as every
+ * placement on the server waits behind that thread.
+ */
+public class PixelWriter {
+    public enum Backpressure {
+        /** Wait up to {@code blockTimeout} for room in the queue, then drop. Not on the board thread. */
+        BLOCK,
+        /** Write the placement synchronously on the calling thread. Not on the board thread. */
+        SYNC,
+        /** Drop the placement straight away. */
+        DROP
+    }
+
+    // Drops are logged at most this often, a full queue would otherwise log every placement
+    private static final long DROP_LOG_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private final DAO handle;
+    private final BlockingQueue<Placement> queue;
+    private final int flushSize;
+    private final long flushIntervalMillis;
+    private final Backpressure backpressure;
+    private final long blockTimeoutMillis;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final Counter dropped = new Counter();
+    private final AtomicLong lastDropLog = new AtomicLong();
+    private final AtomicLong droppedSinceLog = new AtomicLong();
+    private final Timer flushes = new SummingTimer();
+
+    public PixelWriter(DAO handle, int queueSize, int flushSize, long flushIntervalMillis, Backpressure backpressure, long blockTimeoutMillis) {
+        this.handle = handle;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.flushSize = flushSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.backpressure = backpressure;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+
+        thread = new Thread(this::run, "pxls-pixel-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void enqueue(int x, int y, int color, int who) {
+        Placement placement = new Placement(x, y, color, who, System.currentTimeMillis());
+        if (running && queue.offer(placement)) return;
+
+        BoardWriter boardWriter = App.getBoardWriter();
+        Backpressure policy = boardWriter != null && boardWriter.isWriterThread() ? Backpressure.DROP : backpressure;
+        switch (policy) {
+            case BLOCK:
+                try {
+                    if (running && queue.offer(placement, blockTimeoutMillis, TimeUnit.MILLISECONDS)) return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case SYNC:
+                write(Collections.singletonList(placement));
+                return;
+        }
+
+        dropped.inc();
+        droppedSinceLog.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long last = lastDropLog.get();
+        if (now - last >= DROP_LOG_INTERVAL && lastDropLog.compareAndSet(last, now)) {
+            App.pixelLogger.log(Level.WARN, "Pixel write queue full, dropped " + droppedSinceLog.getAndSet(0) + " placements (last " + x + " " + y + " " + color + " by " + who + ")");
+        }
+    }
+
+    private void run() {
+        List<Placement> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Placement first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                // Keep collecting until the batch is full or the oldest placement has waited long enough
+                long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                while (batch.size() < flushSize) {
+                    if (queue.drainTo(batch, flushSize - batch.size()) > 0) continue;
+
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !running) break;
+                    Placement next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutting down, write out what we have
+            }
+
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Placement> batch) {
+        Map<Integer, Timestamp> userTimes = new LinkedHashMap<>();
+        for (Placement placement : batch) {
+            userTimes.put(placement.getWho(), placement.getTime());
+        }
+
+        try (Timer.Context ignored = flushes.time()) {
+            handle.putPixels(batch);
+            handle.updateUserTimes(new ArrayList<>(userTimes.keySet()), new ArrayList<>(userTimes.values()));
+        } catch (Exception e) {
+            App.pixelLogger.log(Level.ERROR, "Failed to write " + batch.size() + " placements", e);
+        }
+    }
+
+    /**
+     * Stops accepting placements and blocks until everything already queued has been written.
+     */
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public Counter getDropped() {
+        return dropped;
+    }
+
+    public Timer getFlushes() {
+        return flushes;
+    }
+
+    public static class Placement {
+        private final int x;
+        private final int y;
+        private final byte color;
+        private final int who;
+        private final Timestamp time;
+
+        public Placement(int x, int y, int color, int who, long time) {
+            this.x = x;
+            this.y = y;
+            this.color = (byte) color;
+            this.who = who;
+            this.time = new Timestamp(time);
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public byte getColor() {
+            return color;
+        }
+
+        public int getWho() {
+            return who;
+        }
+
+        public Timestamp getTime() {
+            return time;
+        }
+    }
+}
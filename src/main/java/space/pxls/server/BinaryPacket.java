@@ -0,0 +1,63 @@
+package space.pxls.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of the high-volume server packets, sent to clients that connected with {@code /ws?binary=1}.
+ * All values are big-endian. Every frame starts with a one byte opcode:
+ *
+ * <pre>
+ * PIXEL    [0x01][seq f64] then per pixel [x u16][y u16][color u8]
+ * COOLDOWN [0x02][wait f32]
+ * USERS    [0x03][count u32]
+ * </pre>
+ *
+ * Packets without a binary form keep being sent as JSON text frames.
+ */
+public class BinaryPacket {
+    public static final byte PIXEL = 0x01;
+    public static final byte COOLDOWN = 0x02;
+    public static final byte USERS = 0x03;
+
+    public static final int PIXEL_SIZE = 5;
+
+    /**
+     * @return the encoded frame ready to be sent, or null if the packet has no binary form
+     */
+    public static ByteBuffer encode(Object obj) {
+        if (obj instanceof Packet.ServerPlace) return encodePlace((Packet.ServerPlace) obj);
+        if (obj instanceof Packet.ServerCooldown) return encodeCooldown((Packet.ServerCooldown) obj);
+        if (obj instanceof Packet.ServerUsers) return encodeUsers((Packet.ServerUsers) obj);
+        return null;
+    }
+
+    public static ByteBuffer encodePlace(Packet.ServerPlace place) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + place.pixels.size() * PIXEL_SIZE);
+        buf.put(PIXEL);
+        // A double holds every sequence number up to 2^53 exactly, and JavaScript reads it natively
+        buf.putDouble(place.seq);
+        for (Packet.ServerPlace.Pixel pixel : place.pixels) {
+            buf.putShort((short) pixel.x);
+            buf.putShort((short) pixel.y);
+            buf.put((byte) pixel.color);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer encodeCooldown(Packet.ServerCooldown cooldown) {
+        ByteBuffer buf = ByteBuffer.allocate(5);
+        buf.put(COOLDOWN);
+        buf.putFloat(cooldown.wait);
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer encodeUsers(Packet.ServerUsers users) {
+        ByteBuffer buf = ByteBuffer.allocate(5);
+        buf.put(USERS);
+        buf.putInt(users.count);
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,136 @@
+package space.pxls.server;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.DateUtils;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
+import space.pxls.board.Board;
+import space.pxls.board.BoardWriter;
+import space.pxls.board.PlacementHistory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves {@code /boarddata} from a snapshot of the board that is re-encoded at most once per interval, and only when
+ * the board changed. The ETag is derived from the board content, so clients reloading after a restart still get a 304
+ * if the board is unchanged.
+ */
+public class BoardDataCache {
+    private static class Snapshot {
+        final ByteBuffer raw;
+        final ByteBuffer gzip;
+        final String etag;
+        final long lastModified;
+        final long version;
+        final long seq;
+
+        Snapshot(ByteBuffer raw, ByteBuffer gzip, String etag, long lastModified, long version, long seq) {
+            this.raw = raw;
+            this.gzip = gzip;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.version = version;
+            this.seq = seq;
+        }
+    }
+
+    private static final HttpString SEQ_HEADER = new HttpString("X-Pxls-Seq");
+
+    private final Board board;
+    private final BoardWriter writer;
+    private final PlacementHistory history;
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService executor;
+
+    public BoardDataCache(Board board, BoardWriter writer, PlacementHistory history) {
+        this.board = board;
+        this.writer = writer;
+        this.history = history;
+        refresh();
+    }
+
+    public void start(long intervalMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pxls-boarddata-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::refresh, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a new snapshot and compresses it, unless the board hasn't changed since the last one.
+     */
+    public void refresh() {
+        Snapshot current = snapshot;
+        long version = board.getVersion();
+        if (current != null && current.version == version) return;
+
+        // Taken on the board thread, so the copy holds exactly the placements up to seq
+        long[] seq = new long[1];
+        byte[] data;
+        try {
+            data = writer.call(() -> {
+                seq[0] = history.getLatest();
+                return board.copy();
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + data.length + "\"";
+        if (current != null && current.etag.equals(etag)) {
+            snapshot = new Snapshot(current.raw, current.gzip, current.etag, current.lastModified, version, seq[0]);
+            return;
+        }
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip, 65536)) {
+            out.write(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        snapshot = new Snapshot(ByteBuffer.wrap(data).asReadOnlyBuffer(), ByteBuffer.wrap(gzip.toByteArray()).asReadOnlyBuffer(),
+                etag, System.currentTimeMillis(), version, seq[0]);
+    }
+
+    public void handle(HttpServerExchange exchange) {
+        Snapshot current = snapshot;
+
+        exchange.getResponseHeaders().put(Headers.ETAG, current.etag);
+        exchange.getResponseHeaders().put(SEQ_HEADER, current.seq);
+        exchange.getResponseHeaders().put(Headers.LAST_MODIFIED, DateUtils.toDateString(new Date(current.lastModified)));
+        exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "no-cache");
+        exchange.getResponseHeaders().put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(current.etag))) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/octet-stream");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst(Headers.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "gzip");
+            exchange.getResponseSender().send(current.gzip.duplicate());
+        } else {
+            exchange.getResponseSender().send(current.raw.duplicate());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package space.pxls.server;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 
@@ -10,6 +11,17 @@ public class Packet {
         public int color;
     }
 
+    public static class ClientResync {
+        public long since;
+    }
+
+    public static class ClientViewport {
+        public int x;
+        public int y;
+        public int width;
+        public int height;
+    }
+
     public static class ClientCaptcha {
         public String token;
     }
@@ -43,9 +55,11 @@ public class Packet {
     public static class ServerPlace {
         public String type = "pixel";
         public Collection<Pixel> pixels;
+        public long seq;
 
-        public ServerPlace(Collection<Pixel> pixels) {
+        public ServerPlace(Collection<Pixel> pixels, long seq) {
             this.pixels = pixels;
+            this.seq = seq;
         }
 
         public static class Pixel {
@@ -61,6 +75,37 @@ public class Packet {
         }
     }
     
+    public static class ServerRegion {
+        public String type = "region";
+        public int x1;
+        public int y1;
+        public int x2;
+        public int y2;
+        public int color;
+        public int[] runs;
+        public long seq;
+        transient BitSet changed;
+
+        public ServerRegion(int x1, int y1, int x2, int y2, int color, int[] runs, BitSet changed, long seq) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.color = color;
+            this.runs = runs;
+            this.changed = changed;
+            this.seq = seq;
+        }
+
+        public boolean changes(int x, int y) {
+            return x >= x1 && x <= x2 && y >= y1 && y <= y2 && changed.get((y - y1) * (x2 - x1 + 1) + (x - x1));
+        }
+    }
+
+    public static class ServerResyncRequired {
+        public String type = "resync_required";
+    }
+
     public static class ServerAlert {
         public String type = "alert";
         public String message;
@@ -98,6 +143,22 @@ public class Packet {
         }
     }
 
+    public static class HttpTileManifest {
+        public int tileSize;
+        public int columns;
+        public int rows;
+        public long epoch;
+        public long[] versions;
+
+        public HttpTileManifest(int tileSize, int columns, int rows, long epoch, long[] versions) {
+            this.tileSize = tileSize;
+            this.columns = columns;
+            this.rows = rows;
+            this.epoch = epoch;
+            this.versions = versions;
+        }
+    }
+
     public static class HttpInfo {
         public int width;
         public int height;
@@ -0,0 +1,155 @@
+package space.pxls.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Decodes inbound JSON frames into packet objects in a single streaming pass. Packet classes are registered by their
+ * {@code type} value; their public fields are bound straight from the stream as they are read, primitives and strings
+ * without going through an intermediate tree. Fields that arrive before {@code type} are held back until the packet
+ * class is known.
+ */
+public class PacketDecoder {
+    private static class Binding {
+        final Supplier<?> factory;
+        final Map<String, Field> fields = new HashMap<>();
+
+        Binding(Class<?> type, Supplier<?> factory) {
+            this.factory = factory;
+            for (Field field : type.getFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) continue;
+                fields.put(field.getName(), field);
+            }
+        }
+    }
+
+    /**
+     * Reader over a string that can be pointed at the next frame, so each IO thread keeps one instead of allocating a
+     * new one per frame.
+     */
+    private static class FrameReader extends Reader {
+        private String data;
+        private int pos;
+
+        void reset(String data) {
+            this.data = data;
+            this.pos = 0;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (pos >= data.length()) return -1;
+            int n = Math.min(len, data.length() - pos);
+            data.getChars(pos, pos + n, buf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Gson gson;
+    private final Map<String, Binding> bindings = new ConcurrentHashMap<>();
+    private final ThreadLocal<FrameReader> readers = ThreadLocal.withInitial(FrameReader::new);
+
+    public PacketDecoder(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Decodes frames with the given {@code type} into instances of {@code packet}, created by {@code factory}.
+     */
+    public <T> PacketDecoder register(String type, Class<T> packet, Supplier<? extends T> factory) {
+        bindings.put(type, new Binding(packet, factory));
+        return this;
+    }
+
+    /**
+     * @return the decoded packet, or null if the frame is malformed or of an unknown type
+     */
+    public Object decode(String frame) {
+        FrameReader frameReader = readers.get();
+        frameReader.reset(frame);
+        try {
+            return read(new JsonReader(frameReader));
+        } catch (IOException | IllegalStateException | NumberFormatException | JsonParseException | ReflectiveOperationException e) {
+            return null;
+        } finally {
+            frameReader.reset("");
+        }
+    }
+
+    private Object read(JsonReader in) throws IOException, ReflectiveOperationException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) return null;
+        in.beginObject();
+
+        Binding binding = null;
+        Object packet = null;
+        List<String> earlyNames = null;
+        List<JsonElement> earlyValues = null;
+
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (binding == null && name.equals("type")) {
+                if (in.peek() != JsonToken.STRING) return null;
+                binding = bindings.get(in.nextString());
+                if (binding == null) return null;
+                packet = binding.factory.get();
+
+                if (earlyNames != null) {
+                    for (int i = 0; i < earlyNames.size(); i++) {
+                        Field field = binding.fields.get(earlyNames.get(i));
+                        if (field != null) field.set(packet, gson.fromJson(earlyValues.get(i), field.getGenericType()));
+                    }
+                }
+            } else if (binding == null) {
+                if (earlyNames == null) {
+                    earlyNames = new ArrayList<>();
+                    earlyValues = new ArrayList<>();
+                }
+                earlyNames.add(name);
+                earlyValues.add(gson.fromJson(in, JsonElement.class));
+            } else {
+                Field field = binding.fields.get(name);
+                if (field == null) {
+                    in.skipValue();
+                } else {
+                    bind(in, packet, field);
+                }
+            }
+        }
+        in.endObject();
+        return packet;
+    }
+
+    private void bind(JsonReader in, Object packet, Field field) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            field.setInt(packet, in.nextInt());
+        } else if (type == long.class) {
+            field.setLong(packet, in.nextLong());
+        } else if (type == boolean.class) {
+            field.setBoolean(packet, in.nextBoolean());
+        } else if (type == String.class && in.peek() == JsonToken.STRING) {
+            field.set(packet, in.nextString());
+        } else {
+            field.set(packet, gson.fromJson(in, field.getGenericType()));
+        }
+    }
+}
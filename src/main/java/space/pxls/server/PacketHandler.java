@@ -1,30 +1,84 @@
 package space.pxls.server;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.async.Callback;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import io.undertow.websockets.core.WebSocketChannel;
 import space.pxls.App;
+import space.pxls.RegionOperation;
+import space.pxls.captcha.CaptchaPipeline;
+import space.pxls.captcha.CaptchaVerifier;
+import space.pxls.captcha.LocalCaptchaVerifier;
+import space.pxls.captcha.RecaptchaVerifier;
 import space.pxls.user.Role;
 import space.pxls.user.User;
+import space.pxls.util.SummingTimer;
 import space.pxls.util.Timer;
-import space.pxls.data.DBUser;
 
 import org.apache.logging.log4j.Level;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.spec.EllipticCurve;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class PacketHandler {
     private UndertowServer server;
     private Timer userData = new Timer(5);
+    private PixelAggregator pixelAggregator;
+    private PacketDecoder decoder;
+    private CaptchaPipeline captchaPipeline;
+
+    private com.codahale.metrics.Timer placeTime;
+    private Meter rejectedBounds;
+    private Meter rejectedColor;
+    private Meter rejectedBanned;
+    private Meter rejectedCooldown;
+    private Meter rejectedCaptcha;
+    private Meter rejectedBusy;
 
     public PacketHandler(UndertowServer server) {
         this.server = server;
+
+        decoder = new PacketDecoder(App.getGson())
+                .register("placepixel", Packet.ClientPlace.class, Packet.ClientPlace::new)
+                .register("resync", Packet.ClientResync.class, Packet.ClientResync::new)
+                .register("viewport", Packet.ClientViewport.class, Packet.ClientViewport::new)
+                .register("captcha", Packet.ClientCaptcha.class, Packet.ClientCaptcha::new)
+                .register("command", Packet.ClientAdminCommand.class, Packet.ClientAdminCommand::new);
+
+        pixelAggregator = new PixelAggregator(server, App.getWidth(), App.getConfig().getDuration("server.broadcastTick", TimeUnit.MILLISECONDS));
+        pixelAggregator.start();
+
+        CaptchaVerifier verifier;
+        if (App.getConfig().getString("captcha.verifier").equals("local")) {
+            verifier = new LocalCaptchaVerifier(App.getConfig().getDuration("captcha.local.latency", TimeUnit.MILLISECONDS));
+        } else {
+            verifier = new RecaptchaVerifier(App.getConfig().getString("captcha.secret"), App.getConfig().getString("captcha.host"));
+        }
+        captchaPipeline = new CaptchaPipeline(verifier,
+                App.getConfig().getInt("captcha.maxConcurrent"),
+                App.getConfig().getInt("captcha.maxQueued"),
+                App.getConfig().getDuration("captcha.timeout", TimeUnit.MILLISECONDS),
+                App.getConfig().getDuration("captcha.cacheTtl", TimeUnit.MILLISECONDS),
+                App.getConfig().getInt("captcha.cacheSize"));
+
+        MetricRegistry metrics = App.getMetrics();
+        placeTime = metrics.timer("pxls.place", SummingTimer::new);
+        rejectedBounds = metrics.meter("pxls.place.rejected.bounds");
+        rejectedColor = metrics.meter("pxls.place.rejected.color");
+        rejectedBanned = metrics.meter("pxls.place.rejected.banned");
+        rejectedCooldown = metrics.meter("pxls.place.rejected.cooldown");
+        rejectedCaptcha = metrics.meter("pxls.place.rejected.captcha");
+        rejectedBusy = metrics.meter("pxls.place.rejected.busy");
+        metrics.register("pxls.broadcast.batchSize", pixelAggregator.getBatchSize());
+        metrics.register("pxls.broadcast.latency", pixelAggregator.getFlushLatency());
+        metrics.register("pxls.captcha.rejected", captchaPipeline.getRejected());
+        metrics.register("pxls.captcha.timedOut", captchaPipeline.getTimedOut());
+        metrics.register("pxls.captcha.deduplicated", captchaPipeline.getDeduplicated());
+        metrics.register("pxls.captcha.cacheHits", captchaPipeline.getCacheHits());
     }
 
     public void connect(WebSocketChannel channel, User user) {
@@ -38,10 +92,13 @@ public class PacketHandler {
     }
 
     public void disconnect(WebSocketChannel channel, User user) {
+        server.getViewports().remove(channel);
         updateUserData();
     }
 
     public void accept(WebSocketChannel channel, User user, Object obj) {
+        if (obj instanceof Packet.ClientResync) handleResync(channel, (Packet.ClientResync) obj);
+        if (obj instanceof Packet.ClientViewport) handleViewport(channel, (Packet.ClientViewport) obj);
         if (user != null) {
             if (obj instanceof Packet.ClientPlace) handlePlace(channel, user, ((Packet.ClientPlace) obj));
             if (obj instanceof Packet.ClientCaptcha) handleCaptcha(channel, user, ((Packet.ClientCaptcha) obj));
@@ -54,62 +111,123 @@ public class PacketHandler {
     }
 
     private void handlePlace(WebSocketChannel channel, User user, Packet.ClientPlace cp) {
-        if (cp.x < 0 || cp.x >= App.getWidth() || cp.y < 0 || cp.y >= App.getHeight()) return;
-        if (cp.color < 0 || cp.color >= App.getConfig().getStringList("board.palette").size()) return;
-        if (user.getRole().equals(Role.BANNED))
-        {
-            server.send(channel, new Packet.ServerAlert("Whoops, looks like you were a bad boy and was banned!"));
-            return;
+        // Validation, the write and the broadcast all happen in order on the board thread
+        if (!App.getBoardWriter().submit(() -> place(channel, user, cp))) {
+            rejectedBusy.mark();
+            server.send(channel, new Packet.ServerAlert("The server is too busy right now, please try again."));
+            sendCooldownData(channel, user);
         }
-        if (user.canPlace()) {
-            if (user.updateCaptchaFlagPrePlace()) {
-                server.send(channel, new Packet.ServerCaptchaRequired());
-            } else {
-                App.putPixel(cp.x, cp.y, cp.color, user);
-                App.saveMap();
-                broadcastPixelUpdate(cp.x, cp.y, cp.color);
+    }
 
-                if (!user.isOverridingCooldown())
-                    user.resetCooldown();
+    private void place(WebSocketChannel channel, User user, Packet.ClientPlace cp) {
+        try (com.codahale.metrics.Timer.Context ignored = placeTime.time()) {
+            if (cp.x < 0 || cp.x >= App.getWidth() || cp.y < 0 || cp.y >= App.getHeight()) {
+                rejectedBounds.mark();
+                return;
             }
-        }
+            if (cp.color < 0 || cp.color >= App.getSettings().getPaletteSize()) {
+                rejectedColor.mark();
+                return;
+            }
+            if (user.getRole().equals(Role.BANNED))
+            {
+                rejectedBanned.mark();
+                server.send(channel, new Packet.ServerAlert("Whoops, looks like you were a bad boy and was banned!"));
+                return;
+            }
+            if (user.canPlace()) {
+                if (user.updateCaptchaFlagPrePlace()) {
+                    rejectedCaptcha.mark();
+                    server.send(channel, new Packet.ServerCaptchaRequired());
+                } else {
+                    long seq = App.putPixel(cp.x, cp.y, cp.color, user);
+                    if (seq < 0) {
+                        // Bounds were checked above, so the journal could not be written; the board is unchanged
+                        server.send(channel, new Packet.ServerAlert("Your pixel could not be placed, please try again."));
+                    } else {
+                        broadcastPixelUpdate(cp.x, cp.y, cp.color, seq);
 
-        sendCooldownData(channel, user);
+                        if (!user.isOverridingCooldown())
+                            user.resetCooldown();
+                    }
+                }
+            } else {
+                rejectedCooldown.mark();
+            }
+
+            sendCooldownData(channel, user);
+        }
     }
 
-    private void handleCaptcha(WebSocketChannel channel, User user, Packet.ClientCaptcha cc) {
-        if (!user.isFlaggedForCaptcha()) return;
+    private void handleResync(WebSocketChannel channel, Packet.ClientResync cr) {
+        pixelAggregator.runAfterFlush(() -> {
+            long seq = replay(channel, cr.since, (s, x, y) -> true);
+            // The client now has the whole board again, even outside of its viewport
+            if (seq >= 0) server.getViewports().rebase(channel, seq);
+        });
+    }
 
-        Unirest
-                .post("https://www.google.com/recaptcha/api/siteverify")
-                .field("secret", App.getConfig().getString("captcha.secret"))
-                .field("response", cc.token)
-                .field("remoteip", "null")
-                .asJsonAsync(new Callback<JsonNode>() {
-                    @Override
-                    public void completed(HttpResponse<JsonNode> response) {
-                        JsonNode body = response.getBody();
+    private void handleViewport(WebSocketChannel channel, Packet.ClientViewport cv) {
+        // Runs on the broadcast thread, so no tick is sent while the channel's subscription changes
+        pixelAggregator.runAfterFlush(() -> {
+            ViewportIndex viewports = server.getViewports();
+            ViewportIndex.Viewport old = viewports.get(channel);
+            long latest = App.getHistory().getLatest();
 
-                        String hostname = App.getConfig().getString("captcha.host");
+            if (cv.width <= 0 || cv.height <= 0) {
+                if (old == null) return;
+                viewports.remove(channel);
+                replay(channel, old.base, (seq, x, y) -> !old.covers(x, y) || seq <= old.since);
+                return;
+            }
 
-                        boolean success = body.getObject().getBoolean("success") && body.getObject().getString("hostname").equals(hostname);
-                        if (success) {
-                            user.validateCaptcha();
-                        }
+            // A channel that received everything so far is up to date everywhere
+            long base = old == null ? latest : old.base;
+            ViewportIndex.Viewport viewport = viewports.set(channel, cv.x, cv.y, cv.x + cv.width, cv.y + cv.height, latest, base);
+            if (old != null) {
+                replay(channel, old.base, (seq, x, y) -> viewport.covers(x, y) && !(old.covers(x, y) && seq > old.since));
+            }
+        });
+    }
 
-                        server.send(channel, new Packet.ServerCaptchaStatus(success));
-                    }
+    @FunctionalInterface
+    private interface ReplayFilter {
+        boolean test(long seq, int x, int y);
+    }
 
-                    @Override
-                    public void failed(UnirestException e) {
+    /**
+     * Sends the channel every recorded placement after {@code since} that passes {@code filter}, or asks it to reload
+     * the board if the history no longer goes back that far.
+     *
+     * @return the sequence number the channel is now up to date with, or -1 if it has to reload
+     */
+    private long replay(WebSocketChannel channel, long since, ReplayFilter filter) {
+        Map<Integer, Packet.ServerPlace.Pixel> missed = new LinkedHashMap<>();
+        long seq = App.getHistory().since(since, (s, x, y, color) -> {
+            if (filter.test(s, x, y)) missed.put(x + y * App.getWidth(), new Packet.ServerPlace.Pixel(x, y, color));
+        });
+        if (seq < 0) {
+            server.send(channel, new Packet.ServerResyncRequired());
+        } else {
+            server.send(channel, new Packet.ServerPlace(missed.values(), seq));
+        }
+        return seq;
+    }
 
-                    }
+    private void handleCaptcha(WebSocketChannel channel, User user, Packet.ClientCaptcha cc) {
+        if (!user.isFlaggedForCaptcha()) return;
 
-                    @Override
-                    public void cancelled() {
+        captchaPipeline.verify(user.getId(), cc.token).whenComplete((success, error) -> {
+            if (error != null) {
+                App.pixelLogger.log(Level.WARN, "Captcha verification for " + user.getName() + " failed: " + error);
+                success = false;
+            }
+            if (success) {
+                user.validateCaptcha();
+            }
 
-                    }
-                });
+            server.send(channel, new Packet.ServerCaptchaStatus(success));
+        });
     }
 
     private void handleCommand(WebSocketChannel channel, User user, Packet.ClientAdminCommand cmd) {
@@ -132,14 +250,33 @@ public class PacketHandler {
                 if (cmd.arguments.length >= 5)
                 {
                     int from = cmd.arguments.length >= 6 ? Integer.parseInt(cmd.arguments[5]) : -1;
-                    App.blank(user, Integer.parseInt(cmd.arguments[0]), Integer.parseInt(cmd.arguments[1]), Integer.parseInt(cmd.arguments[2]),
-                                                                        Integer.parseInt(cmd.arguments[3]), Integer.parseInt(cmd.arguments[4]), from);
+                    startRegionOperation(channel, user, cmd.arguments, Integer.parseInt(cmd.arguments[4]), from);
                 }
                 else
                 {
                     server.send(channel, new Packet.ServerAlert("Invalid amount of argument for `blank` command!"));
                 }
                 break;
+            case "fill":
+                if (cmd.arguments.length >= 5)
+                {
+                    startRegionOperation(channel, user, cmd.arguments, Integer.parseInt(cmd.arguments[4]), -1);
+                }
+                else
+                {
+                    server.send(channel, new Packet.ServerAlert("Invalid amount of argument for `fill` command!"));
+                }
+                break;
+            case "replace":
+                if (cmd.arguments.length >= 6)
+                {
+                    startRegionOperation(channel, user, cmd.arguments, Integer.parseInt(cmd.arguments[5]), Integer.parseInt(cmd.arguments[4]));
+                }
+                else
+                {
+                    server.send(channel, new Packet.ServerAlert("Invalid amount of argument for `replace` command!"));
+                }
+                break;
             case "reload":
                 if (!App.reloadConfig())
                 {
@@ -147,19 +284,16 @@ public class PacketHandler {
                 }
                 break;
             case "save":
-                App.saveMap();
+                App.getBoardSaver().requestSave().thenRun(() -> server.send(channel, new Packet.ServerAlert("Map saved.")));
                 App.pixelLogger.log(Level.INFO, user.getName() + " invoked map save.");
                 break;
             // TODO: Edit palette.
             case "ban": case "unban":
-                Role target = cmd.command == "ban" ? Role.BANNED : Role.DEFAULT;
-                DBUser dbUsr = App.getDatabase().getUserByName(cmd.arguments[0]);
-                User usr = null;
-                if (dbUsr != null) usr = App.getUserManager().getByDB(dbUsr);
+                Role target = cmd.command.equals("ban") ? Role.BANNED : Role.DEFAULT;
+                User usr = App.getUserManager().getByName(cmd.arguments[0]);
                 if (usr != null)
                 {
-                    usr.setRole(target);
-                    App.getDatabase().getHandle().updateUserRole(usr.getId(), target.toString());
+                    App.getUserManager().setRole(usr, target);
                     App.pixelLogger.log(Level.INFO, user.getName() + " set role " + target.toString() + " to user " + usr.getName());
                     server.send(channel, new Packet.ServerAlert("User role set to : " + target.toString()));
                 }
@@ -172,8 +306,7 @@ public class PacketHandler {
                 User userTarget = user;
                 if (cmd.arguments.length > 0 && cmd.arguments[0] != "")
                 {
-                    dbUsr = App.getDatabase().getUserByName(cmd.arguments[0]);
-                    if (dbUsr != null) userTarget = App.getUserManager().getByDB(dbUsr);
+                    userTarget = App.getUserManager().getByName(cmd.arguments[0]);
                     if (userTarget == null)
                     {
                         server.send(channel, new Packet.ServerAlert("User not found!"));
@@ -187,6 +320,34 @@ public class PacketHandler {
         }
     }
     
+    private void startRegionOperation(WebSocketChannel channel, User user, String[] args, int to, int from) {
+        RegionOperation operation = new RegionOperation(user, Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]), Integer.parseInt(args[3]), to, from, new RegionOperation.Listener() {
+            private long lastProgress = System.currentTimeMillis();
+
+            @Override
+            public void chunk(int x1, int y1, int x2, int y2, int color, int[] runs, BitSet changed, long seq) {
+                pixelAggregator.addRegion(new Packet.ServerRegion(x1, y1, x2, y2, color, runs, changed, seq));
+            }
+
+            @Override
+            public void progress(long done, long total) {
+                long now = System.currentTimeMillis();
+                if (now - lastProgress < 2000) return;
+                lastProgress = now;
+                server.send(channel, new Packet.ServerAlert("Region operation " + (done * 100 / total) + "% done"));
+            }
+
+            @Override
+            public void finished(int changed) {
+                server.send(channel, new Packet.ServerAlert("Region operation done, " + changed + " pixels changed."));
+            }
+        });
+        if (!operation.start()) {
+            server.send(channel, new Packet.ServerAlert("Invalid colors, or the server is too busy right now."));
+        }
+    }
+
     private void updateUserData() {
         userData.run(() -> {
             server.broadcast(new Packet.ServerUsers(server.getConnections().size()));
@@ -197,7 +358,19 @@ public class PacketHandler {
         server.send(channel, new Packet.ServerCooldown(user.getRemainingCooldown()));
     }
 
-    private void broadcastPixelUpdate(int x, int y, int color) {
-        server.broadcast(new Packet.ServerPlace(Collections.singleton(new Packet.ServerPlace.Pixel(x, y, color))));
+    private void broadcastPixelUpdate(int x, int y, int color, long seq) {
+        pixelAggregator.add(x, y, color, seq);
+    }
+
+    public CaptchaPipeline getCaptchaPipeline() {
+        return captchaPipeline;
+    }
+
+    public PacketDecoder getDecoder() {
+        return decoder;
+    }
+
+    public PixelAggregator getPixelAggregator() {
+        return pixelAggregator;
     }
 }
@@ -0,0 +1,148 @@
+package space.pxls.server;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import space.pxls.util.SummingHistogram;
+import space.pxls.util.SummingTimer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers pixel updates and broadcasts them as one {@link Packet.ServerPlace} per tick.
+ * Several writes to the same coordinate within a tick are collapsed to the last one. Region updates buffered in the
+ * same tick go out before the pixels, and drop any buffered pixel they overwrite, so clients apply both in the order
+ * they happened on the board.
+ */
+public class PixelAggregator {
+    private final UndertowServer server;
+    private final int width;
+    private final long tickMillis;
+    private ScheduledExecutorService executor;
+
+    private Map<Integer, Packet.ServerPlace.Pixel> pending = new LinkedHashMap<>();
+    private List<Packet.ServerRegion> pendingRegions = new ArrayList<>();
+    private long pendingSince;
+    private long pendingSeq;
+
+    private final Histogram batchSize = new SummingHistogram();
+    private final Timer flushLatency = new SummingTimer();
+
+    public PixelAggregator(UndertowServer server, int width, long tickMillis) {
+        this.server = server;
+        this.width = width;
+        this.tickMillis = tickMillis;
+    }
+
+    public void start() {
+        if (tickMillis <= 0) return;
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pxls-broadcast");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::flush, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(int x, int y, int color, long seq) {
+        Packet.ServerPlace.Pixel pixel = new Packet.ServerPlace.Pixel(x, y, color);
+
+        // Aggregation disabled, send right away
+        if (executor == null) {
+            batchSize.update(1);
+            server.broadcastPlace(new Packet.ServerPlace(Collections.singleton(pixel), seq));
+            return;
+        }
+
+        synchronized (this) {
+            if (pending.isEmpty()) pendingSince = System.nanoTime();
+            pending.put(x + y * width, pixel);
+            pendingSeq = Math.max(pendingSeq, seq);
+        }
+    }
+
+    public void addRegion(Packet.ServerRegion region) {
+        if (executor == null) {
+            server.broadcast(region);
+            return;
+        }
+
+        synchronized (this) {
+            if (pending.isEmpty() && pendingRegions.isEmpty()) pendingSince = System.nanoTime();
+            pending.values().removeIf(pixel -> region.changes(pixel.x, pixel.y));
+            pendingRegions.add(region);
+            pendingSeq = Math.max(pendingSeq, region.seq);
+        }
+    }
+
+    /**
+     * Sends whatever is buffered, then runs {@code task} on the broadcast thread. Anything the task sends is therefore
+     * ordered after every tick containing earlier placements.
+     */
+    public void runAfterFlush(Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        executor.execute(() -> {
+            flush();
+            task.run();
+        });
+    }
+
+    public void flush() {
+        Map<Integer, Packet.ServerPlace.Pixel> batch;
+        List<Packet.ServerRegion> regions;
+        long since;
+        long seq;
+        synchronized (this) {
+            if (pending.isEmpty() && pendingRegions.isEmpty()) return;
+            batch = pending;
+            regions = pendingRegions;
+            since = pendingSince;
+            seq = pendingSeq;
+            pending = new LinkedHashMap<>();
+            pendingRegions = new ArrayList<>();
+        }
+
+        try {
+            for (Packet.ServerRegion region : regions) {
+                server.broadcast(region);
+            }
+            if (!batch.isEmpty()) server.broadcastPlace(new Packet.ServerPlace(batch.values(), seq));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        batchSize.update(batch.size());
+        flushLatency.update(System.nanoTime() - since, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            flush();
+        }
+    }
+
+    /**
+     * Distinct pixels sent per tick.
+     */
+    public Histogram getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Time between the first pixel of a tick being buffered and the tick's frame being sent out.
+     */
+    public Timer getFlushLatency() {
+        return flushLatency;
+    }
+}
@@ -0,0 +1,94 @@
+package space.pxls.server;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import space.pxls.util.SummingHistogram;
+import space.pxls.util.SummingTimer;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a metric registry in the Prometheus text exposition format. Dots and other characters Prometheus doesn't
+ * allow in names become underscores. Gauges are exported as gauges, counters and meters as counters, and histograms
+ * and timers as summaries with a handful of quantiles, timers in seconds. Only a {@link SummingTimer} or
+ * {@link SummingHistogram} knows its running total, so only those summaries get a {@code _sum}.
+ */
+public class PrometheusExporter {
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+    private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+    public static String export(MetricRegistry registry) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Metric> entry : registry.getMetrics().entrySet()) {
+            String name = sanitize(entry.getKey());
+            Metric metric = entry.getValue();
+
+            if (metric instanceof Gauge) {
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) {
+                    type(out, name, "gauge");
+                    sample(out, name, ((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    type(out, name, "gauge");
+                    sample(out, name, (Boolean) value ? 1 : 0);
+                }
+            } else if (metric instanceof Counter) {
+                type(out, name + "_total", "counter");
+                sample(out, name + "_total", ((Counter) metric).getCount());
+            } else if (metric instanceof Timer) {
+                Timer timer = (Timer) metric;
+                Long sum = metric instanceof SummingTimer ? ((SummingTimer) metric).getSum() : null;
+                summary(out, name, timer.getSnapshot(), timer.getCount(), sum, SECONDS_PER_NANO);
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                Long sum = metric instanceof SummingHistogram ? ((SummingHistogram) metric).getSum() : null;
+                summary(out, name, histogram.getSnapshot(), histogram.getCount(), sum, 1);
+            } else if (metric instanceof Meter) {
+                type(out, name + "_total", "counter");
+                sample(out, name + "_total", ((Meter) metric).getCount());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param sum the running total of everything recorded, or null if it isn't known
+     */
+    private static void summary(StringBuilder out, String name, Snapshot snapshot, long count, Long sum, double factor) {
+        type(out, name, "summary");
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(snapshot.getValue(quantile) * factor).append('\n');
+        }
+        if (sum != null) sample(out, name + "_sum", sum * factor);
+        sample(out, name + "_count", count);
+    }
+
+    private static void type(StringBuilder out, String name, String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    static String sanitize(String name) {
+        StringBuilder out = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9');
+            out.append(valid ? c : '_');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package space.pxls.server;
+
+import com.codahale.metrics.Counter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets keyed by a long (a user id, a hashed IP). Buckets live in open-addressing tables split over a fixed
+ * number of independently locked stripes, three primitive arrays per stripe and no objects per key. A bucket that has
+ * refilled completely behaves exactly like a missing one, so a stripe running out of room just sweeps those out; if
+ * every bucket is still in use the new key is let through untracked rather than growing without bound.
+ */
+public class RateLimiter {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static class Stripe {
+        long[] keys;
+        double[] tokens;
+        long[] updated;
+        int size;
+
+        Stripe(int capacity) {
+            keys = new long[capacity];
+            tokens = new double[capacity];
+            updated = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final long refillNanos;
+    private final Stripe[] stripes;
+    private final int stripeCapacity;
+
+    private final Counter rejected = new Counter();
+    private final Counter untracked = new Counter();
+
+    /**
+     * @param rate tokens added per second
+     * @param burst bucket size, and so the number of frames allowed back to back
+     * @param maxKeys keys tracked at most, spread over the stripes
+     */
+    public RateLimiter(double rate, double burst, int stripeCount, int maxKeys) {
+        this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.refillNanos = (long) Math.ceil(burst / tokensPerNano);
+
+        int stripeSize = Integer.highestOneBit(Math.max(2, stripeCount) - 1) << 1;
+        stripes = new Stripe[stripeSize];
+        // Tables are kept at most half full, so probes stay short
+        int perStripe = Math.max(1, maxKeys / stripeSize);
+        stripeCapacity = Integer.highestOneBit(perStripe * 2 - 1) << 1;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Takes a token from the key's bucket.
+     *
+     * @return false if the bucket is empty and the frame should be rejected
+     */
+    public boolean tryAcquire(long key) {
+        if (key == EMPTY) key++;
+        long hash = mix(key);
+        Stripe stripe = stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+        long now = System.nanoTime();
+
+        synchronized (stripe) {
+            int slot = find(stripe, key, (int) hash);
+            if (stripe.keys[slot] == EMPTY) {
+                if (stripe.size >= stripeCapacity / 2) {
+                    sweep(stripe, now);
+                    if (stripe.size >= stripeCapacity / 2) {
+                        untracked.inc();
+                        return true;
+                    }
+                    slot = find(stripe, key, (int) hash);
+                }
+                stripe.keys[slot] = key;
+                stripe.tokens[slot] = burst;
+                stripe.updated[slot] = now;
+                stripe.size++;
+            }
+
+            double tokens = Math.min(burst, stripe.tokens[slot] + (now - stripe.updated[slot]) * tokensPerNano);
+            stripe.updated[slot] = now;
+            if (tokens >= 1) {
+                stripe.tokens[slot] = tokens - 1;
+                return true;
+            }
+            stripe.tokens[slot] = tokens;
+        }
+        rejected.inc();
+        return false;
+    }
+
+    private int find(Stripe stripe, long key, int hash) {
+        int mask = stripe.keys.length - 1;
+        int slot = hash & mask;
+        while (stripe.keys[slot] != EMPTY && stripe.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Rebuilds the stripe's table without the buckets that have refilled since they were last used.
+     */
+    private void sweep(Stripe stripe, long now) {
+        long[] keys = stripe.keys;
+        double[] tokens = stripe.tokens;
+        long[] updated = stripe.updated;
+
+        stripe.keys = new long[keys.length];
+        stripe.tokens = new double[keys.length];
+        stripe.updated = new long[keys.length];
+        Arrays.fill(stripe.keys, EMPTY);
+        stripe.size = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY || now - updated[i] >= refillNanos) continue;
+            int slot = find(stripe, keys[i], (int) mix(keys[i]));
+            stripe.keys[slot] = keys[i];
+            stripe.tokens[slot] = tokens[i];
+            stripe.updated[slot] = updated[i];
+            stripe.size++;
+        }
+    }
+
+    private static long mix(long key) {
+        // Murmur3 finalizer, so sequential ids and similar addresses spread over stripes and slots
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Hashes an address (or any string) to a key.
+     */
+    public static long key(String value) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Frames rejected because the bucket was empty.
+     */
+    public Counter getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Keys let through without a bucket because their stripe was full of active ones.
+     */
+    public Counter getUntracked() {
+        return untracked;
+    }
+}
@@ -0,0 +1,143 @@
+package space.pxls.server;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import space.pxls.App;
+import space.pxls.board.Board;
+import space.pxls.board.TileIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the board in fixed-size tiles. {@code /tiles/manifest} lists the current version of every tile and
+ * {@code /tiles/<tx>/<ty>?v=<epoch>-<version>} returns the raw color indices of one tile, row by row. A request for
+ * the current version is cacheable forever, so a CDN or proxy in front absorbs repeated fetches.
+ */
+public class TileCache {
+    private static class Tile {
+        final long version;
+        final ByteBuffer raw;
+        final ByteBuffer gzip;
+
+        Tile(long version, ByteBuffer raw, ByteBuffer gzip) {
+            this.version = version;
+            this.raw = raw;
+            this.gzip = gzip;
+        }
+    }
+
+    private final Board board;
+    private final TileIndex index;
+    private final Map<Integer, Tile> tiles = new ConcurrentHashMap<>();
+
+    public TileCache(Board board, TileIndex index) {
+        this.board = board;
+        this.index = index;
+    }
+
+    public void manifest(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "no-cache");
+        exchange.getResponseSender().send(App.getGson().toJson(new Packet.HttpTileManifest(
+                index.getTileSize(), index.getColumns(), index.getRows(), index.getEpoch(), index.getVersions())));
+    }
+
+    public void tile(HttpServerExchange exchange) {
+        String[] parts = exchange.getRelativePath().substring(1).split("/");
+        int tx;
+        int ty;
+        try {
+            tx = Integer.parseInt(parts[0]);
+            ty = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+            exchange.endExchange();
+            return;
+        }
+        if (tx < 0 || tx >= index.getColumns() || ty < 0 || ty >= index.getRows()) {
+            exchange.setStatusCode(StatusCodes.NOT_FOUND);
+            exchange.endExchange();
+            return;
+        }
+
+        // Cached tiles are sent straight from the IO thread, building one (copy and gzip) runs on a worker
+        Tile tile = getCachedTile(tx, ty);
+        if (tile == null) {
+            if (exchange.isInIoThread()) {
+                exchange.dispatch(this::tile);
+                return;
+            }
+            tile = getTile(tx, ty);
+        }
+        String etag = index.getEpoch() + "-" + tile.version;
+
+        // Only the current version may be cached for good, anything else has to be revalidated
+        Deque<String> requested = exchange.getQueryParameters().get("v");
+        boolean current = requested != null && etag.equals(requested.peekFirst());
+        exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, current ? "public, max-age=31536000, immutable" : "no-cache");
+        exchange.getResponseHeaders().put(Headers.ETAG, "\"" + etag + "\"");
+        exchange.getResponseHeaders().put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.contains("\"" + etag + "\"")) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/octet-stream");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst(Headers.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "gzip");
+            exchange.getResponseSender().send(tile.gzip.duplicate());
+        } else {
+            exchange.getResponseSender().send(tile.raw.duplicate());
+        }
+    }
+
+    /**
+     * @return the cached tile if it is still current, otherwise null
+     */
+    private Tile getCachedTile(int tx, int ty) {
+        Tile tile = tiles.get(tx + ty * index.getColumns());
+        return tile != null && tile.version == index.getVersion(tx, ty) ? tile : null;
+    }
+
+    private Tile getTile(int tx, int ty) {
+        int key = tx + ty * index.getColumns();
+        long version = index.getVersion(tx, ty);
+        Tile tile = tiles.get(key);
+        if (tile != null && tile.version == version) return tile;
+
+        // The version is read before copying, so the data is never older than the version it is cached under
+        int size = index.getTileSize();
+        int x0 = tx * size;
+        int y0 = ty * size;
+        int w = Math.min(size, board.getWidth() - x0);
+        int h = Math.min(size, board.getHeight() - y0);
+        byte[] data = new byte[w * h];
+        ByteBuffer view = board.view();
+        for (int row = 0; row < h; row++) {
+            view.position(x0 + (y0 + row) * board.getWidth());
+            view.get(data, row * w, w);
+        }
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        tile = new Tile(version, ByteBuffer.wrap(data).asReadOnlyBuffer(), ByteBuffer.wrap(gzip.toByteArray()).asReadOnlyBuffer());
+        tiles.put(key, tile);
+        return tile;
+    }
+}
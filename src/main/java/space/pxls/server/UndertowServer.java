@@ -1,6 +1,9 @@
 package space.pxls.server;
 
-import com.google.gson.JsonObject;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import io.undertow.Handlers;
 import io.undertow.Undertow;
 import io.undertow.server.HttpServerExchange;
@@ -12,23 +15,62 @@ import io.undertow.websockets.spi.AsyncWebSocketHttpServerExchange;
 import io.undertow.websockets.spi.WebSocketHttpExchange;
 import space.pxls.App;
 import space.pxls.user.User;
+import space.pxls.util.SummingTimer;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 
 public class UndertowServer {
+    private static final String BINARY_ATTRIBUTE = "pxls-binary";
+
+    public enum RateLimitPolicy {
+        /** Ignore frames over the limit. */
+        DROP,
+        /** Close the connection on the first frame over the limit. */
+        CLOSE
+    }
+
     private int port;
     private PacketHandler socketHandler;
     private WebHandler webHandler;
+    private ViewportIndex viewports;
+    private RateLimiter ipLimiter;
+    private RateLimiter userLimiter;
+    private RateLimitPolicy rateLimitPolicy;
+    private final Counter rateLimitClosed = new Counter();
+    private long maxFrameSize;
+    private Timer broadcastTime;
 
     private Set<WebSocketChannel> connections;
 
     public UndertowServer(int port) {
         this.port = port;
 
+        viewports = new ViewportIndex(App.getWidth(), App.getHeight(), App.getConfig().getInt("server.viewports.bucketSize"),
+                App.getConfig().getInt("server.viewports.maxBuckets"));
+
+        ipLimiter = new RateLimiter(App.getConfig().getDouble("server.rateLimit.ip.rate"), App.getConfig().getDouble("server.rateLimit.ip.burst"),
+                App.getConfig().getInt("server.rateLimit.stripes"), App.getConfig().getInt("server.rateLimit.maxKeys"));
+        userLimiter = new RateLimiter(App.getConfig().getDouble("server.rateLimit.user.rate"), App.getConfig().getDouble("server.rateLimit.user.burst"),
+                App.getConfig().getInt("server.rateLimit.stripes"), App.getConfig().getInt("server.rateLimit.maxKeys"));
+        rateLimitPolicy = App.getConfig().getEnum(RateLimitPolicy.class, "server.rateLimit.policy");
+        maxFrameSize = App.getConfig().getBytes("server.maxFrameSize");
         webHandler = new WebHandler();
         socketHandler = new PacketHandler(this);
+
+        MetricRegistry metrics = App.getMetrics();
+        broadcastTime = metrics.timer("pxls.broadcast", SummingTimer::new);
+        metrics.register("pxls.connections", (Gauge<Integer>) () -> connections == null ? 0 : connections.size());
+        metrics.register("pxls.ratelimit.ip.rejected", ipLimiter.getRejected());
+        metrics.register("pxls.ratelimit.ip.untracked", ipLimiter.getUntracked());
+        metrics.register("pxls.ratelimit.user.rejected", userLimiter.getRejected());
+        metrics.register("pxls.ratelimit.user.untracked", userLimiter.getUntracked());
+        metrics.register("pxls.ratelimit.closed", rateLimitClosed);
     }
 
     public void start() {
@@ -38,9 +80,13 @@ public class UndertowServer {
                         .addPrefixPath("/ws", Handlers.websocket(this::webSocketHandler))
                         .addPrefixPath("/info", webHandler::info)
                         .addPrefixPath("/boarddata", webHandler::data)
+                        .addExactPath("/board.png", webHandler::png)
+                        .addExactPath("/tiles/manifest", webHandler::tileManifest)
+                        .addPrefixPath("/tiles", webHandler::tile)
                         .addPrefixPath("/signin/", (x) -> webHandler.signIn(x))
                         .addPrefixPath("/auth/", (x) -> webHandler.auth(x))
                         .addPrefixPath("/signup/do", (x) -> webHandler.signUp(x))
+                        .addExactPath("/metrics", webHandler::metrics)
                         .addPrefixPath("/", Handlers.resource(new ClassPathResourceManager(App.class.getClassLoader(), "public/"))
                         .setCacheTime(10))
                 ).build();
@@ -55,6 +101,7 @@ public class UndertowServer {
         if (ipf != null) {
             ip = ipf;
         }
+        long ipKey = RateLimiter.key(ip);
 
         String token = "";
         try {
@@ -70,6 +117,11 @@ public class UndertowServer {
             e.printStackTrace();
         }
 
+        List<String> binary = exchange.getRequestParameters().get("binary");
+        if (binary != null && binary.contains("1")) {
+            channel.setAttribute(BINARY_ATTRIBUTE, Boolean.TRUE);
+        }
+
         User user = App.getUserManager().getByToken(token);
         socketHandler.connect(channel, user);
 
@@ -78,26 +130,58 @@ public class UndertowServer {
             protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) throws IOException {
                 super.onFullTextMessage(channel, message);
 
-                String data = message.getData();
-
-                JsonObject jsonObj = App.getGson().fromJson(data, JsonObject.class);
-                String type = jsonObj.get("type").getAsString();
-
-                Object obj = null;
-                if (type.equals("placepixel")) obj = App.getGson().fromJson(jsonObj, Packet.ClientPlace.class);
-                if (type.equals("captcha")) obj = App.getGson().fromJson(jsonObj, Packet.ClientCaptcha.class);
-                if (type.equals("command")) obj = App.getGson().fromJson(jsonObj, Packet.ClientAdminCommand.class);
+                // Checked before anything is parsed, so spamming frames costs next to nothing
+                if (!allowFrame(channel, ipKey, user)) return;
 
+                Object obj = socketHandler.getDecoder().decode(message.getData());
                 if (obj != null) {
                     socketHandler.accept(channel, user, obj);
                 }
             }
+
+            @Override
+            protected long getMaxTextBufferSize() {
+                // Larger frames are refused while still being read, before anything is buffered for decoding
+                return maxFrameSize;
+            }
         });
         channel.getCloseSetter().set(c -> socketHandler.disconnect(channel, user));
         channel.resumeReceives();
     }
 
+    private boolean allowFrame(WebSocketChannel channel, long ipKey, User user) {
+        if (ipLimiter.tryAcquire(ipKey) && (user == null || userLimiter.tryAcquire(user.getId()))) return true;
+
+        if (rateLimitPolicy == RateLimitPolicy.CLOSE && channel.isOpen()) {
+            rateLimitClosed.inc();
+            WebSockets.sendClose(CloseMessage.MSG_VIOLATES_POLICY, "Rate limit exceeded", channel, null);
+        }
+        return false;
+    }
+
+    public RateLimiter getIpLimiter() {
+        return ipLimiter;
+    }
+
+    public RateLimiter getUserLimiter() {
+        return userLimiter;
+    }
+
+    /**
+     * Connections closed for going over the rate limit, with the CLOSE policy.
+     */
+    public Counter getRateLimitClosed() {
+        return rateLimitClosed;
+    }
+
     public void send(WebSocketChannel channel, Object obj) {
+        if (isBinary(channel)) {
+            ByteBuffer binary = BinaryPacket.encode(obj);
+            if (binary != null) {
+                sendRaw(channel, binary);
+                return;
+            }
+        }
         sendRaw(channel, App.getGson().toJson(obj));
     }
 
@@ -105,15 +189,66 @@ public class UndertowServer {
         return connections;
     }
 
+    public ViewportIndex getViewports() {
+        return viewports;
+    }
+
     public void broadcast(Object obj) {
-        String json = App.getGson().toJson(obj);
+        try (Timer.Context ignored = broadcastTime.time()) {
+            broadcast(obj, channel -> true);
+        }
+    }
+
+    /**
+     * Sends pixel updates to every channel without a viewport, and to each subscribed channel only the pixels inside
+     * its viewport.
+     */
+    public void broadcastPlace(Packet.ServerPlace place) {
+        try (Timer.Context ignored = broadcastTime.time()) {
+            if (viewports.isEmpty()) {
+                broadcast(place, channel -> true);
+                return;
+            }
+
+            broadcast(place, viewports::receivesAll);
+            for (Map.Entry<WebSocketChannel, List<Packet.ServerPlace.Pixel>> entry : viewports.route(place.pixels).entrySet()) {
+                send(entry.getKey(), new Packet.ServerPlace(entry.getValue(), place.seq));
+            }
+        }
+    }
+
+    private void broadcast(Object obj, Predicate<WebSocketChannel> filter) {
+        // Both encodings are produced lazily, at most once per broadcast
+        String json = null;
+        ByteBuffer binary = null;
+        boolean binaryEncoded = false;
         for (WebSocketChannel channel : connections) {
+            if (!filter.test(channel)) continue;
+            if (isBinary(channel)) {
+                if (!binaryEncoded) {
+                    binary = BinaryPacket.encode(obj);
+                    binaryEncoded = true;
+                }
+                if (binary != null) {
+                    sendRaw(channel, binary.duplicate());
+                    continue;
+                }
+            }
+            if (json == null) json = App.getGson().toJson(obj);
             sendRaw(channel, json);
         }
     }
 
+    private boolean isBinary(WebSocketChannel channel) {
+        return channel.getAttribute(BINARY_ATTRIBUTE) != null;
+    }
+
     private void sendRaw(WebSocketChannel channel, String str) {
         WebSockets.sendText(str, channel, null);
     }
+
+    private void sendRaw(WebSocketChannel channel, ByteBuffer buf) {
+        WebSockets.sendBinary(buf, channel, null);
+    }
 }
 
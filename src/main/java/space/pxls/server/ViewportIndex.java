@@ -0,0 +1,162 @@
+package space.pxls.server;
+
+import io.undertow.websockets.core.WebSocketChannel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Spatial index of the board regions clients declared as visible, so a placement is only sent to the channels looking
+ * at it. The board is split into square buckets and every subscribed channel is registered in each bucket its
+ * viewport touches. Channels without a viewport get every pixel, and so do viewports spanning more than
+ * {@code maxBuckets} buckets, which are kept out of the index since routing to them would cost more than it saves.
+ */
+public class ViewportIndex {
+    public static class Viewport {
+        public final int x1;
+        public final int y1;
+        public final int x2;
+        public final int y2;
+        /**
+         * Sequence number from which on this viewport received every placement inside it.
+         */
+        public final long since;
+        /**
+         * Sequence number up to which the client has the whole board, so everything it is missing is newer than this.
+         */
+        public final long base;
+        public final boolean wide;
+
+        Viewport(int x1, int y1, int x2, int y2, long since, long base, boolean wide) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.since = since;
+            this.base = base;
+            this.wide = wide;
+        }
+
+        /**
+         * @return whether placements at this coordinate are sent to the viewport's channel
+         */
+        public boolean covers(int x, int y) {
+            return wide || (x >= x1 && x < x2 && y >= y1 && y < y2);
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int bucketSize;
+    private final int columns;
+    private final int maxBuckets;
+    private final Set<WebSocketChannel>[] buckets;
+    private final Map<WebSocketChannel, Viewport> viewports = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public ViewportIndex(int width, int height, int bucketSize, int maxBuckets) {
+        this.width = width;
+        this.height = height;
+        this.bucketSize = bucketSize;
+        this.maxBuckets = maxBuckets;
+        this.columns = (width + bucketSize - 1) / bucketSize;
+        int rows = (height + bucketSize - 1) / bucketSize;
+
+        buckets = new Set[columns * rows];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    /**
+     * Replaces the channel's viewport with the given rectangle, clamped to the board. {@code x2} and {@code y2} are
+     * exclusive.
+     */
+    public Viewport set(WebSocketChannel channel, int x1, int y1, int x2, int y2, long since, long base) {
+        x1 = Math.max(0, Math.min(width, x1));
+        y1 = Math.max(0, Math.min(height, y1));
+        x2 = Math.max(x1, Math.min(width, x2));
+        y2 = Math.max(y1, Math.min(height, y2));
+
+        long spanned = (long) bucketSpan(x1, x2) * bucketSpan(y1, y2);
+        Viewport viewport = new Viewport(x1, y1, x2, y2, since, base, spanned > maxBuckets);
+
+        unindex(channel, viewports.put(channel, viewport));
+        if (!viewport.wide) {
+            forEachBucket(viewport, bucket -> bucket.add(channel));
+        }
+        return viewport;
+    }
+
+    /**
+     * Keeps the channel's viewport but records that the client has the whole board up to {@code base}.
+     */
+    public void rebase(WebSocketChannel channel, long base) {
+        viewports.computeIfPresent(channel, (c, v) -> new Viewport(v.x1, v.y1, v.x2, v.y2, v.since, base, v.wide));
+    }
+
+    public Viewport remove(WebSocketChannel channel) {
+        Viewport old = viewports.remove(channel);
+        unindex(channel, old);
+        return old;
+    }
+
+    public Viewport get(WebSocketChannel channel) {
+        return viewports.get(channel);
+    }
+
+    public boolean isEmpty() {
+        return viewports.isEmpty();
+    }
+
+    /**
+     * @return whether the channel is sent every placement, either because it has no viewport or a too large one
+     */
+    public boolean receivesAll(WebSocketChannel channel) {
+        Viewport viewport = viewports.get(channel);
+        return viewport == null || viewport.wide;
+    }
+
+    /**
+     * Splits {@code pixels} up between the indexed channels whose viewport contains them. Channels that
+     * {@link #receivesAll(WebSocketChannel) receive all} pixels are not included.
+     */
+    public Map<WebSocketChannel, List<Packet.ServerPlace.Pixel>> route(Collection<Packet.ServerPlace.Pixel> pixels) {
+        Map<WebSocketChannel, List<Packet.ServerPlace.Pixel>> routed = new HashMap<>();
+        for (Packet.ServerPlace.Pixel pixel : pixels) {
+            for (WebSocketChannel channel : buckets[pixel.x / bucketSize + pixel.y / bucketSize * columns]) {
+                Viewport viewport = viewports.get(channel);
+                if (viewport != null && !viewport.wide && viewport.covers(pixel.x, pixel.y)) {
+                    routed.computeIfAbsent(channel, c -> new ArrayList<>()).add(pixel);
+                }
+            }
+        }
+        return routed;
+    }
+
+    private void unindex(WebSocketChannel channel, Viewport viewport) {
+        if (viewport != null && !viewport.wide) {
+            forEachBucket(viewport, bucket -> bucket.remove(channel));
+        }
+    }
+
+    private void forEachBucket(Viewport viewport, Consumer<Set<WebSocketChannel>> action) {
+        if (viewport.x1 == viewport.x2 || viewport.y1 == viewport.y2) return;
+        for (int by = viewport.y1 / bucketSize; by <= (viewport.y2 - 1) / bucketSize; by++) {
+            for (int bx = viewport.x1 / bucketSize; bx <= (viewport.x2 - 1) / bucketSize; bx++) {
+                action.accept(buckets[bx + by * columns]);
+            }
+        }
+    }
+
+    private int bucketSpan(int from, int to) {
+        if (from == to) return 0;
+        return (to - 1) / bucketSize - from / bucketSize + 1;
+    }
+}
@@ -1,29 +1,64 @@
 package space.pxls.server;
 
-import com.mashape.unirest.http.exceptions.UnirestException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.Cookie;
 import io.undertow.server.handlers.CookieImpl;
 import io.undertow.util.Headers;
 import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
 import io.undertow.util.StatusCodes;
+import org.apache.logging.log4j.Level;
 import space.pxls.App;
+import space.pxls.auth.AuthDispatcher;
 import space.pxls.auth.AuthService;
 import space.pxls.auth.GoogleAuthService;
+import space.pxls.auth.LocalAuthService;
 import space.pxls.auth.RedditAuthService;
-import space.pxls.auth.TwitterAuthService;
+import space.pxls.board.PngRenderer;
+import space.pxls.user.Role;
 import space.pxls.user.User;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Deque;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class WebHandler {
-    private Map<String, AuthService> services = new ConcurrentHashMap<>();
+    private AuthDispatcher auth;
+    private BoardDataCache boardDataCache;
+    private TileCache tileCache;
+    private Map<Integer, PngRenderer> pngRenderers = new ConcurrentHashMap<>();
 
     {
-        services.put("reddit", new RedditAuthService("reddit"));
-        services.put("google", new GoogleAuthService("google"));
+        auth = new AuthDispatcher(
+                App.getConfig().getInt("oauth.threads"),
+                App.getConfig().getInt("oauth.queueSize"),
+                App.getConfig().getDuration("oauth.timeout", TimeUnit.MILLISECONDS),
+                App.getConfig().getInt("oauth.circuitBreaker.failures"),
+                App.getConfig().getDuration("oauth.circuitBreaker.openFor", TimeUnit.MILLISECONDS));
+        auth.register(new RedditAuthService("reddit"));
+        auth.register(new GoogleAuthService("google"));
+        if (App.getConfig().getBoolean("oauth.local.enabled")) {
+            auth.register(new LocalAuthService("local", App.getConfig().getDuration("oauth.local.latency", TimeUnit.MILLISECONDS)));
+        }
+
+        MetricRegistry metrics = App.getMetrics();
+        metrics.register("pxls.auth.queue", (Gauge<Integer>) auth::getQueueSize);
+        metrics.register("pxls.auth.active", (Gauge<Integer>) auth::getActive);
+        metrics.register("pxls.auth.rejected", auth.getRejected());
+        metrics.register("pxls.auth.timedOut", auth.getTimedOut());
+        metrics.register("pxls.auth.shortCircuited", auth.getShortCircuited());
+
+        boardDataCache = new BoardDataCache(App.getBoard(), App.getBoardWriter(), App.getHistory());
+        boardDataCache.start(App.getConfig().getDuration("server.boardDataCacheInterval", TimeUnit.MILLISECONDS));
+
+        tileCache = new TileCache(App.getBoard(), App.getTiles());
     }
 
     public void signUp(HttpServerExchange exchange) {
@@ -81,15 +116,10 @@ public class WebHandler {
         });
     }
 
-    public void auth(HttpServerExchange exchange) throws UnirestException {
-        if (exchange.isInIoThread()) {
-            exchange.dispatch(this::auth);
-            return;
-        }
-
+    public void auth(HttpServerExchange exchange) {
         String id = exchange.getRelativePath().substring(1);
 
-        AuthService service = services.get(id);
+        AuthService service = auth.get(id);
         if (service != null) {
             Deque<String> code = exchange.getQueryParameters().get("code");
             if (code == null) {
@@ -99,38 +129,51 @@ public class WebHandler {
 
                 return;
             }
-            String token = service.getToken(code.element());
-            String identifier = service.getIdentifier(token);
-
-            if (token != null && identifier != null) {
-                String login = id + ":" + identifier;
-                User user = App.getUserManager().getByLogin(login);
-                if (user == null) {
-                    String signUpToken = App.getUserManager().generateUserCreationToken(login);
-
-                    exchange.setStatusCode(StatusCodes.SEE_OTHER);
-                    exchange.setResponseCookie(new CookieImpl("pxls-signup-token", signUpToken).setPath("/"));
-                    exchange.getResponseHeaders().put(Headers.LOCATION, "/signup.html?token=" + signUpToken);
-                    exchange.getResponseSender().send("");
-                } else {
-                    String loginToken = App.getUserManager().logIn(user);
-                    exchange.setStatusCode(StatusCodes.SEE_OTHER);
-                    exchange.getResponseHeaders().put(Headers.LOCATION, "/");
-                    exchange.setResponseCookie(new CookieImpl("pxls-token", loginToken).setPath("/"));
-                    exchange.getResponseSender().send("");
+
+            // Keep the exchange open without holding a thread while the provider answers
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> auth.identify(service, code.element()).whenComplete((identifier, error) -> {
+                if (error != null) {
+                    App.pixelLogger.log(Level.WARN, "Login via " + id + " failed: " + error);
                 }
+                try {
+                    auth.execute(() -> finishAuth(exchange, id, identifier));
+                } catch (RejectedExecutionException e) {
+                    exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+                    exchange.getResponseSender().send("Too many logins at once, try again in a moment.");
+                }
+            }));
+        }
+    }
+
+    private void finishAuth(HttpServerExchange exchange, String id, String identifier) {
+        if (identifier != null) {
+            String login = id + ":" + identifier;
+            User user = App.getUserManager().getByLogin(login);
+            if (user == null) {
+                String signUpToken = App.getUserManager().generateUserCreationToken(login);
+
+                exchange.setStatusCode(StatusCodes.SEE_OTHER);
+                exchange.setResponseCookie(new CookieImpl("pxls-signup-token", signUpToken).setPath("/"));
+                exchange.getResponseHeaders().put(Headers.LOCATION, "/signup.html?token=" + signUpToken);
+                exchange.getResponseSender().send("");
             } else {
+                String loginToken = App.getUserManager().logIn(user);
                 exchange.setStatusCode(StatusCodes.SEE_OTHER);
                 exchange.getResponseHeaders().put(Headers.LOCATION, "/");
+                exchange.setResponseCookie(new CookieImpl("pxls-token", loginToken).setPath("/"));
                 exchange.getResponseSender().send("");
             }
+        } else {
+            exchange.setStatusCode(StatusCodes.SEE_OTHER);
+            exchange.getResponseHeaders().put(Headers.LOCATION, "/");
+            exchange.getResponseSender().send("");
         }
     }
 
     public void signIn(HttpServerExchange exchange) {
         String id = exchange.getRelativePath().substring(1);
 
-        AuthService service = services.get(id);
+        AuthService service = auth.get(id);
         if (service != null) {
             exchange.setStatusCode(StatusCodes.SEE_OTHER);
             exchange.getResponseHeaders().put(Headers.LOCATION, service.getRedirectUrl());
@@ -141,10 +184,92 @@ public class WebHandler {
     public void info(HttpServerExchange exchange) {
         exchange.getResponseHeaders().add(HttpString.tryFromString("Content-Type"), "application/json");
         exchange.getResponseSender().send(App.getGson().toJson(
-                new Packet.HttpInfo(App.getWidth(), App.getHeight(), App.getConfig().getStringList("board.palette"), App.getConfig().getString("captcha.key"))));
+                new Packet.HttpInfo(App.getWidth(), App.getHeight(), App.getPalette(), App.getSettings().getCaptchaKey())));
+    }
+
+    /**
+     * Every metric in Prometheus' text format, for admins or for a scraper presenting {@code server.metrics.token}.
+     */
+    public void metrics(HttpServerExchange exchange) {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::metrics);
+            return;
+        }
+
+        if (!canReadMetrics(exchange)) {
+            exchange.setStatusCode(StatusCodes.FORBIDDEN);
+            exchange.endExchange();
+            return;
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; version=0.0.4");
+        exchange.getResponseSender().send(PrometheusExporter.export(App.getMetrics()));
+    }
+
+    private boolean canReadMetrics(HttpServerExchange exchange) {
+        String token = App.getConfig().getString("server.metrics.token");
+        String authorization = exchange.getRequestHeaders().getFirst(Headers.AUTHORIZATION);
+        if (!token.isEmpty() && authorization != null && authorization.startsWith("Bearer ")) {
+            return MessageDigest.isEqual(authorization.substring(7).getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Cookie cookie = exchange.getRequestCookies().get("pxls-token");
+        User user = cookie == null ? null : App.getUserManager().getByToken(cookie.getValue());
+        return user != null && user.getRole().greaterEqual(Role.ADMIN);
     }
 
     public void data(HttpServerExchange exchange) {
-        exchange.getResponseSender().send(ByteBuffer.wrap(App.getBoardData()));
+        boardDataCache.handle(exchange);
+    }
+
+    public void png(HttpServerExchange exchange) {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::png);
+            return;
+        }
+
+        int scale = 1;
+        Deque<String> scaleParam = exchange.getQueryParameters().get("scale");
+        if (scaleParam != null) {
+            try {
+                scale = Integer.parseInt(scaleParam.element());
+            } catch (NumberFormatException e) {
+                scale = -1;
+            }
+        }
+        if (!App.getConfig().getIntList("server.pngScales").contains(scale)) {
+            exchange.setStatusCode(StatusCodes.NOT_FOUND);
+            exchange.endExchange();
+            return;
+        }
+
+        PngRenderer renderer = pngRenderers.computeIfAbsent(scale, s -> new PngRenderer(App.getBoard(), App.getTiles(), s,
+                App.getConfig().getDuration("server.pngCacheInterval", TimeUnit.MILLISECONDS)));
+        PngRenderer.Image image = renderer.render(App.getPalette());
+        String etag = image.etag;
+
+        exchange.getResponseHeaders().put(Headers.ETAG, etag);
+        exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "no-cache");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "image/png");
+        exchange.getResponseSender().send(ByteBuffer.wrap(image.png));
+    }
+
+    public AuthDispatcher getAuth() {
+        return auth;
+    }
+
+    public void tileManifest(HttpServerExchange exchange) {
+        tileCache.manifest(exchange);
+    }
+
+    public void tile(HttpServerExchange exchange) {
+        tileCache.tile(exchange);
     }
 }
@@ -0,0 +1,210 @@
+package space.pxls.user;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import space.pxls.data.DBSession;
+import space.pxls.data.Database;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login sessions by token. Every session is stored in the database when it is created, and the most recently used
+ * ones are cached in memory up to {@code maxSize}; a token missing from the cache (evicted, or from before a restart)
+ * is looked up in the database the first time it shows up again. Tokens with no session behind them (unknown, expired
+ * or made up) are remembered for {@code negativeTtl}, so sending them over and over doesn't hit the database each
+ * time. Sessions expire {@code ttl} after logging in or
+ * {@code idleTimeout} after their last use. Last use times are only written back during the periodic compaction,
+ * which also drops expired sessions from memory and the database.
+ */
+public class SessionStore {
+    private static final Logger logger = LogManager.getLogger(SessionStore.class);
+
+    private static class Session {
+        final int userId;
+        final long created;
+        volatile long lastUsed;
+        volatile boolean dirty;
+
+        Session(int userId, long created, long lastUsed) {
+            this.userId = userId;
+            this.created = created;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final Database database;
+    private final long ttl;
+    private final long idleTimeout;
+    private final int maxSize;
+    private final long negativeTtl;
+
+    private final LinkedHashMap<String, Session> cache;
+    // Tokens found to have no session, with the time they were looked up
+    private final LinkedHashMap<String, Long> missing;
+    // Last use times of evicted sessions that have not been written back yet
+    private final Map<String, Long> evictedTouches = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    public SessionStore(Database database, long ttl, long idleTimeout, int maxSize, long negativeTtl) {
+        this.database = database;
+        this.ttl = ttl;
+        this.idleTimeout = idleTimeout;
+        this.maxSize = maxSize;
+        this.negativeTtl = negativeTtl;
+
+        cache = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                if (size() <= SessionStore.this.maxSize) return false;
+                if (eldest.getValue().dirty) evictedTouches.put(eldest.getKey(), eldest.getValue().lastUsed);
+                return true;
+            }
+        };
+        missing = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > SessionStore.this.maxSize;
+            }
+        };
+    }
+
+    public void start(long compactIntervalMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pxls-session-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::compact, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a new session for the user and stores it right away, so it survives a restart.
+     */
+    public void create(String token, int userId) {
+        long now = System.currentTimeMillis();
+        database.createSession(token, userId, now);
+        synchronized (cache) {
+            missing.remove(token);
+            cache.put(token, new Session(userId, now, now));
+        }
+    }
+
+    /**
+     * @return the id of the user the token belongs to, or null if there is no such session or it expired
+     */
+    public Integer get(String token) {
+        if (token == null || token.isEmpty()) return null;
+
+        Session session;
+        synchronized (cache) {
+            session = cache.get(token);
+            if (session == null) {
+                Long since = missing.get(token);
+                if (since != null) {
+                    if (System.currentTimeMillis() - since < negativeTtl) return null;
+                    missing.remove(token);
+                }
+            }
+        }
+
+        if (session == null) {
+            DBSession row;
+            try {
+                row = database.getSession(token);
+            } catch (Exception e) {
+                logger.log(Level.ERROR, "Failed to look up session", e);
+                return null;
+            }
+            if (row == null) {
+                synchronized (cache) {
+                    missing.put(token, System.currentTimeMillis());
+                }
+                return null;
+            }
+
+            synchronized (cache) {
+                session = cache.computeIfAbsent(token, t -> new Session(row.who, row.created, row.lastUsed));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            // The row goes with the next compaction
+            synchronized (cache) {
+                cache.remove(token);
+                missing.put(token, now);
+            }
+            return null;
+        }
+
+        session.lastUsed = now;
+        session.dirty = true;
+        return session.userId;
+    }
+
+    private boolean isExpired(Session session, long now) {
+        return session.created + ttl < now || session.lastUsed + idleTimeout < now;
+    }
+
+    /**
+     * Drops expired sessions and writes back last use times.
+     */
+    public void compact() {
+        long now = System.currentTimeMillis();
+        List<String> tokens = new ArrayList<>();
+        List<Timestamp> times = new ArrayList<>();
+        int expired = 0;
+
+        synchronized (cache) {
+            for (Iterator<Map.Entry<String, Session>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Session> entry = it.next();
+                Session session = entry.getValue();
+                if (isExpired(session, now)) {
+                    it.remove();
+                    expired++;
+                } else if (session.dirty) {
+                    session.dirty = false;
+                    tokens.add(entry.getKey());
+                    times.add(new Timestamp(session.lastUsed));
+                }
+            }
+            for (Map.Entry<String, Long> entry : evictedTouches.entrySet()) {
+                tokens.add(entry.getKey());
+                times.add(new Timestamp(entry.getValue()));
+            }
+            evictedTouches.clear();
+        }
+
+        try {
+            if (!tokens.isEmpty()) database.touchSessions(tokens, times);
+            expired += database.deleteExpiredSessions(now - ttl, now - idleTimeout);
+        } catch (Exception e) {
+            logger.log(Level.ERROR, "Failed to compact sessions", e);
+        }
+        logger.log(Level.DEBUG, "Compacted sessions: " + tokens.size() + " touched, " + expired + " expired");
+    }
+
+    /**
+     * Writes back last use times and stops the compaction.
+     */
+    public void shutdown() {
+        if (executor != null) executor.shutdown();
+        compact();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
@@ -2,8 +2,6 @@ package space.pxls.user;
 
 import space.pxls.App;
 
-import java.util.concurrent.TimeUnit;
-
 public class User {
     private int id;
     private String name;
@@ -31,15 +29,13 @@ public class User {
         if (role.greaterEqual(Role.MODERATOR) && overrideCooldown) return true;
         if (role.equals(Role.BANNED)) return false;
 
-        int serverCooldown = (int) App.getConfig().getDuration("cooldown", TimeUnit.SECONDS);
-        return lastPlaceTime + serverCooldown * 1000 < System.currentTimeMillis();
+        return lastPlaceTime + App.getSettings().getCooldownMillis() < System.currentTimeMillis();
     }
 
     public float getRemainingCooldown() {
         if (role.greaterEqual(Role.MODERATOR) && overrideCooldown) return 0;
 
-        int serverCooldown = (int) App.getConfig().getDuration("cooldown", TimeUnit.SECONDS);
-        return Math.max(0, lastPlaceTime + serverCooldown * 1000 - System.currentTimeMillis()) / 1000f;
+        return Math.max(0, lastPlaceTime + App.getSettings().getCooldownMillis() - System.currentTimeMillis()) / 1000f;
     }
 
     public boolean updateCaptchaFlagPrePlace() {
@@ -53,7 +49,7 @@ public class User {
             return false;
         }
 
-        int captchaThreshold = App.getConfig().getInt("captcha.threshold");
+        int captchaThreshold = App.getSettings().getCaptchaThreshold();
         if (Math.random() < (1f / captchaThreshold)) {
             flaggedForCaptcha = true;
         }
@@ -100,4 +96,8 @@ public class User {
     public String getName() {
         return name;
     }
+
+    public String getLogin() {
+        return login;
+    }
 }
@@ -0,0 +1,198 @@
+package space.pxls.user;
+
+import com.codahale.metrics.Counter;
+import space.pxls.data.DBUser;
+import space.pxls.data.Database;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of users by id, login and name. The {@code maxSize} most recently used users are held in memory;
+ * an evicted user that is still referenced elsewhere (by an open connection, say) is handed out again rather than
+ * loaded a second time, so there is only ever one {@link User} per id and its cooldown and captcha state stay shared.
+ * Logins and names with no user behind them are remembered for {@code negativeTtl}, until a signup claims them.
+ */
+public class UserCache {
+    private static class LiveRef extends WeakReference<User> {
+        final int id;
+
+        LiveRef(User user, ReferenceQueue<User> queue) {
+            super(user, queue);
+            this.id = user.getId();
+        }
+    }
+
+    private final Database database;
+    private final int maxSize;
+    private final long negativeTtl;
+
+    private final LinkedHashMap<Integer, User> byId;
+    private final Map<String, Integer> byLogin = new HashMap<>();
+    private final Map<String, Integer> byName = new HashMap<>();
+    private final Map<Integer, LiveRef> live = new HashMap<>();
+    private final ReferenceQueue<User> collected = new ReferenceQueue<>();
+    private final LinkedHashMap<String, Long> missing;
+
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter negativeHits = new Counter();
+
+    public UserCache(Database database, int maxSize, long negativeTtl) {
+        this.database = database;
+        this.maxSize = maxSize;
+        this.negativeTtl = negativeTtl;
+
+        byId = new LinkedHashMap<Integer, User>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, User> eldest) {
+                if (size() <= UserCache.this.maxSize) return false;
+                unindex(eldest.getValue());
+                return true;
+            }
+        };
+        missing = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > UserCache.this.maxSize;
+            }
+        };
+    }
+
+    public User getById(int id) {
+        synchronized (this) {
+            User user = byId.get(id);
+            if (user != null) {
+                hits.inc();
+                return user;
+            }
+        }
+        return load(() -> database.getUserById(id), null);
+    }
+
+    public User getByLogin(String login) {
+        return get(byLogin, "login:" + login, login, () -> database.getUserByLogin(login));
+    }
+
+    public User getByName(String name) {
+        return get(byName, "name:" + name, name, () -> database.getUserByName(name));
+    }
+
+    private User get(Map<String, Integer> index, String missingKey, String key, Supplier<DBUser> loader) {
+        synchronized (this) {
+            Integer id = index.get(key);
+            User user = id == null ? null : byId.get(id);
+            if (user != null) {
+                hits.inc();
+                return user;
+            }
+
+            Long since = missing.get(missingKey);
+            if (since != null) {
+                if (System.currentTimeMillis() - since < negativeTtl) {
+                    negativeHits.inc();
+                    return null;
+                }
+                missing.remove(missingKey);
+            }
+        }
+        return load(loader, missingKey);
+    }
+
+    private User load(Supplier<DBUser> loader, String missingKey) {
+        misses.inc();
+        DBUser dbUser = loader.get();
+        synchronized (this) {
+            if (dbUser == null) {
+                if (missingKey != null) missing.put(missingKey, System.currentTimeMillis());
+                return null;
+            }
+            return add(dbUser);
+        }
+    }
+
+    /**
+     * Turns a database row into the one {@link User} for its id, creating it if there is none yet.
+     */
+    public synchronized User add(DBUser dbUser) {
+        expungeCollected();
+
+        User user = byId.get(dbUser.id);
+        if (user == null) {
+            LiveRef ref = live.get(dbUser.id);
+            user = ref == null ? null : ref.get();
+        }
+        if (user == null) {
+            user = new User(dbUser.id, dbUser.username, dbUser.login, dbUser.lastPlaceTime, dbUser.role);
+            live.put(user.getId(), new LiveRef(user, collected));
+        } else {
+            // Re-read after an invalidation, pick up changes made behind our back
+            user.setRole(dbUser.role);
+        }
+
+        byId.put(user.getId(), user);
+        byLogin.put(user.getLogin(), user.getId());
+        byName.put(user.getName(), user.getId());
+        missing.remove("login:" + user.getLogin());
+        missing.remove("name:" + user.getName());
+        return user;
+    }
+
+    /**
+     * Makes the next lookup of this user go to the database, after its row was changed.
+     */
+    public synchronized void invalidate(User user) {
+        byId.remove(user.getId());
+        unindex(user);
+    }
+
+    /**
+     * Forgets that there is no user with this login or name, after a signup.
+     */
+    public synchronized void invalidateMissing(String login, String name) {
+        missing.remove("login:" + login);
+        missing.remove("name:" + name);
+    }
+
+    private void unindex(User user) {
+        byLogin.remove(user.getLogin(), user.getId());
+        byName.remove(user.getName(), user.getId());
+    }
+
+    private void expungeCollected() {
+        Reference<? extends User> ref;
+        while ((ref = collected.poll()) != null) {
+            live.remove(((LiveRef) ref).id, ref);
+        }
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    /**
+     * Lookups answered from memory.
+     */
+    public Counter getHits() {
+        return hits;
+    }
+
+    /**
+     * Lookups that went to the database.
+     */
+    public Counter getMisses() {
+        return misses;
+    }
+
+    /**
+     * Lookups answered from memory with "no such user".
+     */
+    public Counter getNegativeHits() {
+        return negativeHits;
+    }
+}
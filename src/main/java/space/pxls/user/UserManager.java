@@ -3,23 +3,33 @@ package space.pxls.user;
 import space.pxls.App;
 import space.pxls.data.DBUser;
 
+import java.security.SecureRandom;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class UserManager {
-    private Map<String, User> usersByToken = new ConcurrentHashMap<>();
+    private static final Random rand = new SecureRandom();
+
+    private SessionStore sessions;
     private Map<String, String> userSignupTokens = new ConcurrentHashMap<>();
 
-    private Map<Integer, User> userCache = new ConcurrentHashMap<>();
+    private UserCache userCache;
 
     public UserManager() {
-
+        userCache = new UserCache(App.getDatabase(), App.getConfig().getInt("users.cacheSize"),
+                App.getConfig().getDuration("users.negativeTtl", TimeUnit.MILLISECONDS));
+        sessions = new SessionStore(App.getDatabase(),
+                App.getConfig().getDuration("sessions.ttl", TimeUnit.MILLISECONDS),
+                App.getConfig().getDuration("sessions.idleTimeout", TimeUnit.MILLISECONDS),
+                App.getConfig().getInt("sessions.maxSize"),
+                App.getConfig().getDuration("sessions.negativeTtl", TimeUnit.MILLISECONDS));
+        sessions.start(App.getConfig().getDuration("sessions.compactInterval", TimeUnit.MILLISECONDS));
     }
 
     private static String generateRandom() {
         String charset = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
-        Random rand = new Random();
         StringBuilder res = new StringBuilder();
         for (int i = 0; i <= 32; i++) {
             int randIndex = rand.nextInt(charset.length());
@@ -29,21 +39,36 @@ public class UserManager {
     }
 
     public User getByToken(String token) {
-        return usersByToken.get(token);
+        Integer id = sessions.get(token);
+        if (id == null) return null;
+        return userCache.getById(id);
     }
 
     public User getByLogin(String login) {
-        return getByDB(App.getDatabase().getUserByLogin(login));
+        return userCache.getByLogin(login);
+    }
+
+    public User getByName(String name) {
+        return userCache.getByName(name);
     }
 
     public User getByDB(DBUser user) {
         if (user == null) return null;
-        return userCache.computeIfAbsent(user.id, (k) -> new User(user.id, user.username, user.login, user.lastPlaceTime, user.role));
+        return userCache.add(user);
+    }
+
+    /**
+     * Sets the user's role and stores it, keeping the cached user in line with the database.
+     */
+    public void setRole(User user, Role role) {
+        user.setRole(role);
+        App.getDatabase().getHandle().updateUserRole(user.getId(), role.toString());
+        userCache.invalidate(user);
     }
 
     public String logIn(User user) {
         String token = generateRandom();
-        usersByToken.put(token, user);
+        sessions.create(token, user.getId());
         return token;
     }
 
@@ -61,14 +86,27 @@ public class UserManager {
         String login = userSignupTokens.get(token);
         if (login == null) return null;
 
-        if (App.getDatabase().getUserByName(name) == null) {
+        if (userCache.getByName(name) == null) {
             DBUser user = App.getDatabase().createUser(name, login);
             userSignupTokens.remove(token);
+            userCache.invalidateMissing(login, name);
             return getByDB(user);
         }
         return null;
     }
 
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    public SessionStore getSessions() {
+        return sessions;
+    }
+
+    public void shutdown() {
+        sessions.shutdown();
+    }
+
     public static class LoginResult {
         private String token;
         private String user;
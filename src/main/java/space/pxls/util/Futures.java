@@ -0,0 +1,57 @@
+package space.pxls.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class Futures {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pxls-future-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @return a future completing like {@code future}, or with a {@link TimeoutException} if that takes longer than
+     * {@code timeoutMillis}, in which case {@code future} is cancelled
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            result.completeExceptionally(new TimeoutException("Timed out after " + timeoutMillis + "ms"));
+            future.cancel(true);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Cancels {@code source} once {@code dependent} is cancelled. Cancelling a future doesn't reach whatever completes
+     * it, this links the two so the work behind {@code source} can be called off.
+     */
+    public static void cancelWith(Future<?> source, CompletableFuture<?> dependent) {
+        dependent.whenComplete((value, error) -> {
+            if (dependent.isCancelled()) source.cancel(true);
+        });
+    }
+
+    /**
+     * @return a future completing with {@code value} after {@code delayMillis}, unless it is cancelled first
+     */
+    public static <T> CompletableFuture<T> delayed(T value, long delayMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        cancelWith(timer.schedule(() -> result.complete(value), delayMillis, TimeUnit.MILLISECONDS), result);
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package space.pxls.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Producers claim a slot by advancing the tail with
+ * a CAS and then publish their element into it; the consumer treats an unpublished slot as empty, so a claimed but not
+ * yet published element is simply picked up on the next poll.
+ */
+public class MpscRingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) throw new NullPointerException();
+
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= slots.length()) return false;
+        } while (!tail.compareAndSet(t, t + 1));
+
+        slots.lazySet((int) t & mask, element);
+        return true;
+    }
+
+    /**
+     * Must only ever be called from the consumer thread.
+     *
+     * @return the oldest element, or null if there is none (yet)
+     */
+    public E poll() {
+        long h = head;
+        int slot = (int) h & mask;
+        E element = slots.get(slot);
+        if (element == null) return null;
+
+        // Clear the slot before moving on, producers only reuse it once they see the new head
+        slots.lazySet(slot, null);
+        head = h + 1;
+        return element;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head);
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+}
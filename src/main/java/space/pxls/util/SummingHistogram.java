@@ -0,0 +1,28 @@
+package space.pxls.util;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Histogram} that also keeps the total of every value it recorded, which the reservoir behind its snapshot
+ * can't give back. Exported as the summary's {@code _sum}.
+ */
+public class SummingHistogram extends Histogram {
+    private final LongAdder sum = new LongAdder();
+
+    public SummingHistogram() {
+        super(new ExponentiallyDecayingReservoir());
+    }
+
+    @Override
+    public void update(long value) {
+        sum.add(value);
+        super.update(value);
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,50 @@
+package space.pxls.util;
+
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Timer} that also keeps the total of every duration it recorded, which the reservoir behind its snapshot
+ * can't give back. Exported as the summary's {@code _sum}.
+ */
+public class SummingTimer extends Timer {
+    private final LongAdder sum = new LongAdder();
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        if (duration >= 0) sum.add(unit.toNanos(duration));
+        super.update(duration, unit);
+    }
+
+    // Timer's own versions of these record through a private method that would skip the sum
+
+    @Override
+    public <T> T time(Callable<T> event) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return event.call();
+        } finally {
+            update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void time(Runnable event) {
+        long start = System.nanoTime();
+        try {
+            event.run();
+        } finally {
+            update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return the total of all recorded durations, in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+}
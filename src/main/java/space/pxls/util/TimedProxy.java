@@ -0,0 +1,36 @@
+package space.pxls.util;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TimedProxy {
+    /**
+     * Wraps {@code target} so every call through {@code type} is timed, in a timer named {@code prefix.methodName}
+     * registered up front for each of the interface's methods. Overloads share a timer.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T wrap(Class<T> type, T target, MetricRegistry registry, String prefix) {
+        Map<Method, Timer> timers = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            timers.put(method, registry.timer(MetricRegistry.name(prefix, method.getName()), SummingTimer::new));
+        }
+
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Timer timer = timers.get(method);
+            Timer.Context context = timer == null ? null : timer.time();
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (context != null) context.stop();
+            }
+        });
+    }
+}